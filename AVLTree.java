@@ -1,16 +1,164 @@
 package jxc033200;
 
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Objects;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
 public class AVLTree<T extends Comparable<? super T>> extends BinarySearchTree<T> {
+    static final int PARALLEL_THRESHOLD = 1 << 12;     // set operations on fewer entries than this stay on one thread
+    static final int DIRTY = Integer.MIN_VALUE;        // height of an entry a relaxed change went through; its real height is unknown
+    static final int RELAXED_DEPTH_FACTOR = 3;         // relaxed changes deeper than this many times log2(n) force a rebalanceNow()
+    static final int MAX_DEPTH = RELAXED_DEPTH_FACTOR * 32 + 2;    // levels a tree can have, relaxed or not (strict AVL: under 46)
+
     static class Entry<T> extends BinarySearchTree.Entry<T> {
-        int height;        
+        int height;         // DIRTY below a relaxed change that was not rebalanced yet
+        int size = 1;       // number of entries in the subtree rooted here
         Entry(T x, Entry<T> left, Entry<T> right) {
             super(x, (Entry<T>)left, (Entry<T>)right);                      
         }
     }
 
+    T lastTouched;              // key whose search path the last add()/remove() changed, for verifyIncremental()
+    boolean lastTouchedAll;     // the last change was not along a single path
+    boolean relaxed;            // add() and remove() only mark their path, see setRelaxed()
+    TreeMetrics metrics;        // null unless enableMetrics() was called
+    private ObjectName metricsName;
+    LookupCache<T> cache;       // null unless enableCache() was called
+
     AVLTree() {
 	super();
     }
+
+    /**
+     * Starts collecting runtime metrics and publishes them over JMX
+     * <p>
+     * The TreeMetrics is registered with the platform MBean server as
+     * jxc033200:type=AVLTree,name=(name). From then on add(), remove() and contains()
+     * are timed and record their search path length, and rebalance() counts rotations
+     * by kind. Calling it again replaces the previous registration.
+     * <p>
+     * @param name - distinguishes this tree from others in the same JVM
+     * @return the metrics, which can also be read directly
+     * @throws IllegalStateException if the MBean cannot be registered, e.g. the name is taken
+     */
+    public TreeMetrics enableMetrics(String name) {
+        disableMetrics();
+        TreeMetrics m = new TreeMetrics(this);
+        try {
+            ObjectName on = new ObjectName("jxc033200:type=AVLTree,name=" + ObjectName.quote(name));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(m, on);
+            metricsName = on;
+        } catch (JMException e) {
+            throw new IllegalStateException("cannot register metrics for " + name, e);
+        }
+        metrics = m;
+        return m;
+    }
+
+    /**
+     * Stops collecting metrics and unregisters the MBean, if any
+     */
+    public void disableMetrics() {
+        metrics = null;
+        if (metricsName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(metricsName);
+            } catch (JMException e) {
+                // already gone, e.g. unregistered from a JMX console
+            }
+            metricsName = null;
+        }
+    }
+
+    /**
+     * Puts a bounded lookup cache in front of contains() and AVLTreeMap.get()
+     * <p>
+     * A search first probes the cache, and on a miss walks the tree and caches what it
+     * found, including that the key is absent. add(), remove() and the map updates
+     * invalidate exactly the keys they change, and changes that rebuild the tree clear
+     * it, so a cached answer is always the tree's current one. Only worth it when a
+     * minority of keys gets most of the lookups; see LookupCache.
+     * <p>
+     * @param capacity - number of cached keys, rounded up to a power of two
+     * @param eviction - CLOCK, or TINY_LFU to also keep rarely asked keys out
+     * @return the cache, for its hit and miss counts
+     */
+    public LookupCache<T> enableCache(int capacity, LookupCache.Eviction eviction) {
+        cache = new LookupCache<>(capacity, eviction);
+        return cache;
+    }
+
+    // drops the lookup cache; searches walk the tree again
+    public void disableCache() {
+        cache = null;
+    }
+
+    // the entries of a cached key change in these three places only; everything else moves whole entries
+    @Override
+    Entry<T> attach(BinarySearchTree.Entry<T> t, T x) {
+        if (cache != null) cache.invalidate(x);
+        return (Entry<T>) super.attach(t, x);
+    }
+
+    @Override
+    void unlink(BinarySearchTree.Entry<T> t) {
+        if (cache != null) cache.invalidate(t.element);
+        super.unlink(t);
+    }
+
+    @Override
+    void moveContents(BinarySearchTree.Entry<T> from, BinarySearchTree.Entry<T> to) {
+        if (cache != null) cache.invalidate(from.element);     // its key now lives in another entry
+        to.element = from.element;
+    }
+    /**
+     * Builds a tree from n elements given in strictly increasing order
+     * <p>
+     * @param sorted - the elements, ascending, without duplicates
+     * @param n - how many elements to take from the iterator
+     * @return a new, perfectly balanced tree
+     * @throws IllegalArgumentException if the elements are out of order or fewer than n
+     */
+    public static <T extends Comparable<? super T>> AVLTree<T> fromSorted(Iterator<? extends T> sorted, int n) {
+        AVLTree<T> tree = new AVLTree<>();
+        tree.bulkLoad(sorted, n);
+        return tree;
+    }
+
+    /**
+     * Builds a tree from elements in any order
+     * <p>
+     * A copy of the array is sorted with Arrays.parallelSort(), which spreads the
+     * O(n log n) part over the common ForkJoin pool, then equal elements are collapsed
+     * and the tree is built bottom-up. As with add(), the last of several equal
+     * elements is the one kept.
+     * <p>
+     * @param elements - the elements, in any order, duplicates allowed
+     * @return a new, perfectly balanced tree
+     */
+    public static <T extends Comparable<? super T>> AVLTree<T> fromUnsorted(T[] elements) {
+        T[] a = Arrays.copyOf(elements, elements.length);
+        Arrays.parallelSort(a);     // stable, so equal elements keep their order
+        int n = 0;
+        for (T x : a) {
+            if (n > 0 && a[n - 1].compareTo(x) == 0) {
+                a[n - 1] = x;
+            } else {
+                a[n++] = x;
+            }
+        }
+        return fromSorted(Arrays.asList(a).iterator(), n);
+    }
+
     //overridden createEntry to ensure that super.add() will create an AVLTree entry
     @Override
     public Entry<T> createEntry(T x) {
@@ -23,38 +171,174 @@ public class AVLTree<T extends Comparable<? super T>> extends BinarySearchTree<T
      * <p>
      * Calls super.add() to inherit the add method from the BinarySearchTree class, then 
      * goes through the s stack to update heights and rebalance the tree. After rebalancing,
-     * updates the parent's child reference if the current entry changed.
+     * updates the parent's child reference if the current entry changed; the old entry is
+     * still the parent's child, so the side is found by identity, not by comparing x again.
+     * An insertion needs at most one (single or double) rotation, and once a subtree is
+     * back to its old height nothing above it can change, so we stop there.
      * <p>
      * @param x - the element to add
      * @return true if the element was added, false if the element is a duplicate
      */
     @Override
-    public boolean add(T x) {    
-        System.out.println("Adding " + x);
-        if (!super.add(x)) return false;             
+    public boolean add(T x) {
+        TreeMetrics m = metrics;
+        if (m == null) return insert(x);
+        long start = System.nanoTime();
+        boolean added = insert(x);
+        m.recordLatency(TreeMetrics.ADD, System.nanoTime() - start);
+        return added;
+    }
+
+    // add() without the timing
+    private boolean insert(T x) {
+        boolean added = super.add(x);
+        if (metrics != null) {
+            metrics.recordPath(added ? s.size() : s.size() + 1);    // a duplicate's own entry is not on s
+        }
+        if (!added) return false;
+        fixAfterInsert(x);
+        return true;
+    }
+
+    /**
+     * Retraces after attach(): heights, rotations and sizes from the new entry's parent up
+     * <p>
+     * s must hold the path from the root to the new entry's parent, as attach() leaves
+     * it. Shared by add() and the AVLTreeMap operations that insert.
+     * <p>
+     * @param x - the element of the new entry
+     */
+    void fixAfterInsert(T x) {
+        if (relaxed) {
+            relax(1);
+            return;
+        }
+        lastTouched = x;
         while (!s.isEmpty()) {
             Entry<T> node = (Entry<T>)s.pop();      // Get the Entry from the stack                              
+            int oldHeight = node.height;
             updateHeight(node);     // Update the height of the current Entry
-            node = rebalance(node);     // Rebalance if necessary              
-            if (!s.isEmpty()) {     // After rebalancing, update the parent's child reference if needed
+            Entry<T> newNode = rebalance(node);     // Rebalance if necessary              
+            if (newNode != node) {      // After rebalancing, update the parent's child reference
                 Entry<T> parent = (Entry<T>) s.peek();
-                if (parent.left == node || x.compareTo(parent.element) < 0) {
-                    parent.left = node;     // Update the left child
+                if (parent == null) {
+                    root = newNode;     // Update the root if we've reached the top of the tree
+                } else if (parent.left == node) {
+                    parent.left = newNode;      // Update the left child
                 } else {
-                    parent.right = node;    // Update the right child
+                    parent.right = newNode;     // Update the right child
                 }
-            } else {
-                root = node;    // Update the root if we've reached the top of the tree
             }
+            if (newNode.height == oldHeight) {
+                break;      // no height above this entry can change
+            }
+        }
+        updateSizesAbove();
+    }
+
+    /**
+     * Adds an element, with a fast path for elements greater than every other one
+     * <p>
+     * Monotonically increasing keys (timestamps, sequence numbers) always end up as the
+     * right child of the maximum. So instead of comparing x at every level, this follows
+     * the right spine down to the maximum without a single comparison, pushing it on s
+     * as find() would, compares x with the maximum once, and attaches it there. The
+     * retrace is the same as add()'s, O(1) rotations amortized. If x is not greater
+     * than the maximum, it is simply add(x).
+     * <p>
+     * @param x - the element to add
+     * @return true if the element was added, false if it was a duplicate
+     */
+    public boolean append(T x) {
+        BinarySearchTree.Entry<T> t = root;
+        if (t == null) return add(x);
+        s.clear();
+        while (t.right != null) {       // the right spine: pointers only, no compareTo()
+            s.push(t);
+            t = t.right;
         }
+        lastCompare = x.compareTo(t.element);
+        if (lastCompare <= 0) return add(x);
+        attach(t, x);
+        fixAfterInsert(x);
         return true;
     }
 
+    /**
+     * Replaces the contents of the tree with n elements given in strictly increasing order
+     * <p>
+     * Instead of n calls to add(), each doing a search and a retrace, the tree is built
+     * bottom-up in one in-order pass: the first half of the elements becomes the left
+     * subtree, the next one the root, the rest the right subtree. Sizes of sibling
+     * subtrees differ by at most one, so their heights do too, and no rotation is
+     * needed. That is O(n) time, n - 1 comparisons (to check the order) and O(log n)
+     * recursion depth.
+     * <p>
+     * The tree is only replaced once the whole input has been read and checked; if it
+     * is rejected the tree is left as it was.
+     * <p>
+     * @param sorted - the elements, ascending, without duplicates
+     * @param n - how many elements to take from the iterator
+     * @throws IllegalArgumentException if the elements are out of order or fewer than n
+     */
+    public void bulkLoad(Iterator<? extends T> sorted, int n) {
+        if (n < 0) {
+            throw new IllegalArgumentException("negative element count " + n);
+        }
+        Entry<T> t = build(new SortedSource<>(sorted, n), n);
+        root = t;
+        size = n;
+        modCount++;
+        lastTouchedAll = true;
+        s.clear();
+        if (cache != null) cache.clear();
+    }
+
+    // builds a balanced subtree from the next n elements of src, in order
+    private Entry<T> build(SortedSource<T> src, int n) {
+        if (n == 0) return null;
+        int leftSize = (n - 1) / 2;
+        Entry<T> left = build(src, leftSize);
+        Entry<T> t = createEntry(src.next());
+        t.left = left;
+        t.right = build(src, n - 1 - leftSize);
+        updateHeight(t);
+        return t;
+    }
+
+    // the input of bulkLoad(), checked to be strictly increasing as it is consumed
+    private static final class SortedSource<T extends Comparable<? super T>> {
+        final Iterator<? extends T> it;
+        final int expected;
+        int taken;
+        T prev;
+
+        SortedSource(Iterator<? extends T> it, int expected) {
+            this.it = it;
+            this.expected = expected;
+        }
+
+        T next() {
+            if (!it.hasNext()) {
+                throw new IllegalArgumentException("expected " + expected + " elements, got " + taken);
+            }
+            T x = it.next();
+            if (prev != null && prev.compareTo(x) >= 0) {
+                throw new IllegalArgumentException("elements not strictly increasing at index " + taken
+                        + ": " + prev + ", " + x);
+            }
+            prev = x;
+            taken++;
+            return x;
+        }
+    }
+
     /**
      * Updates the height of an Entry based on the heights of its children
      * <p>
      * Gets the height of the left and right child, then calculates the height of the 
-     * entry as the greater height + 1.
+     * entry as the greater height + 1. The subtree size is refreshed along with it,
+     * so rotations, retraces and bulk loading keep both up to date.
      * <p>
      * @param t
      */
@@ -62,6 +346,30 @@ public class AVLTree<T extends Comparable<? super T>> extends BinarySearchTree<T
         int leftChildHeight = height((Entry<T>) t.left);    //get heights of left and right child
         int rightChildHeight = height((Entry<T>) t.right);
         t.height = 1 + Math.max(leftChildHeight, rightChildHeight);     //height is max of left/right child+1
+        updateSize(t);
+    }
+
+    // size is the sizes of the children + 1
+    private void updateSize(Entry<T> t) {
+        t.size = 1 + sizeOf((Entry<T>) t.left) + sizeOf((Entry<T>) t.right);
+    }
+
+    // subtree size of an Entry, 0 for no Entry
+    private int sizeOf(Entry<T> t) {
+        return (t == null) ? 0 : t.size;
+    }
+
+    /**
+     * Finishes a retrace that stopped early
+     * <p>
+     * Once a subtree is back to its old height the heights above it are right, but
+     * every ancestor still gained or lost one entry, so the rest of the path is popped
+     * and only the sizes are refreshed. That leaves the s stack empty.
+     */
+    private void updateSizesAbove() {
+        while (!s.isEmpty()) {
+            updateSize((Entry<T>) s.pop());
+        }
     }
     
     /**
@@ -104,7 +412,7 @@ public class AVLTree<T extends Comparable<? super T>> extends BinarySearchTree<T
         newRoot.left = t;    
         updateHeight(t);
         updateHeight(newRoot);   
-        System.out.println("Performed left rotation on node " + t.element); 
+        tracer.rotatedLeft(t.element);
         return newRoot;
     }
     
@@ -123,7 +431,7 @@ public class AVLTree<T extends Comparable<? super T>> extends BinarySearchTree<T
         newRoot.right = t;    
         updateHeight(t);
         updateHeight(newRoot);   
-        System.out.println("Performed right rotation on node " + t.element); 
+        tracer.rotatedRight(t.element);
         return newRoot;
     }
 
@@ -146,100 +454,1276 @@ public class AVLTree<T extends Comparable<? super T>> extends BinarySearchTree<T
     private Entry<T> rebalance(Entry<T> t) {        
         int balanceFactor = getBalanceFactor(t);
         if (balanceFactor < -1) {
-            System.out.println("balancefactor < -1, left heavy");
             if (getBalanceFactor((Entry<T>) t.left) <= 0) {
                 t = rotateRight(t);     //Rotate right
+                if (metrics != null) metrics.recordRotation(TreeMetrics.LL);
             } else {
                 t.left = rotateLeft((Entry<T>) t.left);     //Rotate left-right
                 t = rotateRight(t);
+                if (metrics != null) metrics.recordRotation(TreeMetrics.LR);
             }
         }
         if (balanceFactor > 1) {
-            System.out.println("balancefactor > 1, right heavy");
             if (getBalanceFactor((Entry<T>) t.right) >= 0) {
                 t = rotateLeft(t);      //Rotate left
+                if (metrics != null) metrics.recordRotation(TreeMetrics.RR);
             } else {
                 t.right = rotateRight((Entry<T>) t.right);      //rotate right-left
                 t = rotateLeft(t);
+                if (metrics != null) metrics.recordRotation(TreeMetrics.RL);
             }
         }
         return t;
     }
 		
-	@Override
+    /**
+     * Removes an element from the tree, rebalancing it to maintain AVL properties
+     * <p>
+     * Calls super.remove(), which leaves the path from the root to the parent of the
+     * spliced entry on the s stack. We then pop that path bottom-up, updating heights
+     * and rebalancing. Unlike add(), a deletion can need a rotation at several levels,
+     * so we keep going until the height of the (possibly rotated) subtree root is the same
+     * as before the removal; the heights above it cannot change either, so we stop there.
+     * <p>
+     * @param x - the element to remove
+     * @return x if it was removed, null if it was not in the tree
+     */
+    @Override
     public T remove(T x) {
-	return super.remove(x);
+        TreeMetrics m = metrics;
+        if (m == null) return delete(x);
+        long start = System.nanoTime();
+        T removed = delete(x);
+        m.recordLatency(TreeMetrics.REMOVE, System.nanoTime() - start);
+        return removed;
+    }
+
+    // remove() without the timing
+    private T delete(T x) {
+        boolean empty = (size == 0);
+        T removed = super.remove(x);
+        if (metrics != null && !empty) {
+            metrics.recordPath(s.size() + 1);   // s ends at the parent of the last entry compared
+        }
+        if (removed == null) return null;
+        fixAfterDelete();
+        return x;
+    }
+
+    /**
+     * Retraces after unlink(): heights, rotations and sizes from the spliced entry's parent up
+     * <p>
+     * s must hold the path unlink() leaves. Shared by remove() and AVLTreeMap.merge().
+     */
+    void fixAfterDelete() {
+        if (relaxed) {
+            relax(-1);
+            return;
+        }
+        Entry<T> splicedParent = (Entry<T>) s.peek();      // the retrace below starts here
+        lastTouched = (splicedParent == null) ? null : splicedParent.element;
+        while (!s.isEmpty()) {
+            Entry<T> node = (Entry<T>) s.pop();
+            int oldHeight = node.height;
+            updateHeight(node);
+            Entry<T> newNode = rebalance(node);
+            if (newNode != node) {      // subtree root changed, re-link it to the parent
+                Entry<T> parent = (Entry<T>) s.peek();
+                if (parent == null) {
+                    root = newNode;
+                } else if (parent.left == node) {
+                    parent.left = newNode;
+                } else {
+                    parent.right = newNode;
+                }
+            }
+            if (newNode.height == oldHeight) {
+                break;      // no height above this entry can change
+            }
+        }
+        updateSizesAbove();
+    }
+
+    /**
+     * Switches relaxed-balance mode on or off
+     * <p>
+     * In relaxed mode add() and remove() (and the AVLTreeMap updates) do their descent
+     * and link or unlink the entry, fix the subtree sizes on the path, and mark the path
+     * dirty instead of retracing it: no height is recomputed and nothing rotates. A
+     * burst of changes thus costs one descent each, and the rebalancing is done later,
+     * all at once by rebalanceNow() or a piece at a time by rebalanceStep(), for
+     * example between requests. This is the relaxed-AVL scheme of Larsen, "AVL Trees
+     * with Relaxed Balance", with the repair done by join() rather than by local rules.
+     * <p>
+     * Dirty entries are always the top of the tree: every ancestor of a dirty entry is
+     * dirty, and every clean subtree is a valid AVL tree. Searches, iteration, rank(),
+     * select() and cursors only need order and sizes, which stay exact, so they work
+     * unchanged, but a search may walk a longer path. To keep that bounded, a change
+     * deeper than RELAXED_DEPTH_FACTOR times log2(n) rebalances the whole tree first.
+     * split(), join() and the set operations rebalance their input before they start.
+     * <p>
+     * Switching relaxed mode off calls rebalanceNow(), so the tree is strict AVL again.
+     * <p>
+     * @param relaxed - true to defer rebalancing, false to rebalance on every change
+     */
+    public void setRelaxed(boolean relaxed) {
+        this.relaxed = relaxed;
+        if (!relaxed) rebalanceNow();
+    }
+
+    public boolean isRelaxed() {
+        return relaxed;
+    }
+
+    // a relaxed change: every entry on s gained or lost one descendant and may be out of balance
+    private void relax(int delta) {
+        int depth = s.size();
+        while (!s.isEmpty()) {
+            Entry<T> node = (Entry<T>) s.pop();
+            node.size += delta;
+            node.height = DIRTY;
+        }
+        lastTouchedAll = true;
+        if (depth > RELAXED_DEPTH_FACTOR * (32 - Integer.numberOfLeadingZeros(size + 1))) {
+            rebalanceNow();
+        }
+    }
+
+    /**
+     * Rebalances everything relaxed changes left dirty, so the tree is strict AVL again
+     * <p>
+     * Bottom-up over the dirty entries only: once both subtrees of a dirty entry are
+     * valid AVL trees, join() hangs the shorter one and the entry off the taller one,
+     * which costs the difference of their heights. Clean subtrees are not visited, so
+     * after a burst of k changes this costs about O(k log n), the same as retracing
+     * each change would have, without the work of changes that cancel out.
+     */
+    public void rebalanceNow() {
+        Entry<T> t = (Entry<T>) root;
+        if (t == null || t.height != DIRTY) return;
+        root = settle(t);
+        modCount++;
+    }
+
+    // rebuilds the dirty top of subtree t; recursion depth is bounded by relax()
+    private Entry<T> settle(Entry<T> t) {
+        if (t == null || t.height != DIRTY) return t;
+        Entry<T> l = settle((Entry<T>) t.left);
+        Entry<T> r = settle((Entry<T>) t.right);
+        return join(l, t, r);
+    }
+
+    /**
+     * Does one bounded step of the rebalancing rebalanceNow() would do
+     * <p>
+     * Descends along dirty entries to one whose children are both clean, and joins them
+     * under it, so each call costs O(log n) and removes one dirty entry. Calling it
+     * until it returns false leaves the tree strict AVL; a caller can spread that over
+     * idle time instead of paying for it in one go.
+     * <p>
+     * @return true if dirty entries remain
+     */
+    public boolean rebalanceStep() {
+        Entry<T> t = (Entry<T>) root;
+        if (t == null || t.height != DIRTY) return false;
+        s.clear();
+        while (true) {
+            Entry<T> l = (Entry<T>) t.left, r = (Entry<T>) t.right;
+            if (l != null && l.height == DIRTY) {
+                s.push(t);
+                t = l;
+            } else if (r != null && r.height == DIRTY) {
+                s.push(t);
+                t = r;
+            } else {
+                break;
+            }
+        }
+        Entry<T> fixed = join((Entry<T>) t.left, t, (Entry<T>) t.right);
+        Entry<T> parent = (Entry<T>) s.peek();
+        if (parent == null) {
+            root = fixed;
+        } else if (parent.left == t) {
+            parent.left = fixed;
+        } else {
+            parent.right = fixed;
+        }
+        s.clear();
+        modCount++;
+        return ((Entry<T>) root).height == DIRTY;
+    }
+
+    /**
+     * Is x contained in the tree?
+     * <p>
+     * Without metrics or a cache this is BinarySearchTree.contains(). Otherwise it is
+     * lookup(), timed if metrics are on.
+     * <p>
+     * @param x - the element to search for
+     * @return true if found, false if not found
+     */
+    @Override
+    public boolean contains(T x) {
+        TreeMetrics m = metrics;
+        if (m == null) return (cache == null) ? super.contains(x) : lookup(x) != null;
+        long start = System.nanoTime();
+        boolean found = lookup(x) != null;
+        m.recordLatency(TreeMetrics.CONTAINS, System.nanoTime() - start);
+        return found;
+    }
+
+    /**
+     * The entry holding x, from the lookup cache if it has the answer, else by a search
+     * <p>
+     * A search that missed the cache stores its result there, found or not. With metrics
+     * the number of entries compared against is recorded, 0 for a cache hit.
+     * <p>
+     * @param x - the element to search for
+     * @return its entry, or null if x is not in the tree
+     */
+    Entry<T> lookup(T x) {
+        LookupCache<T> c = cache;
+        int h = 0;
+        if (c != null) {
+            h = LookupCache.hash(x);
+            LookupCache.Line<T> line = c.get(x, h);
+            if (line != null) {
+                if (metrics != null) metrics.recordPath(0);
+                return line.entry;
+            }
+        }
+        int length = 0;
+        BinarySearchTree.Entry<T> t = root;
+        while (t != null) {
+            length++;
+            int cmp = x.compareTo(t.element);
+            if (cmp < 0) {
+                t = t.left;
+            } else if (cmp > 0) {
+                t = t.right;
+            } else {
+                break;
+            }
+        }
+        if (metrics != null) metrics.recordPath(length);
+        if (c != null) c.put(x, h, (Entry<T>) t);
+        return (Entry<T>) t;
     }
 	
+    /**
+     * Number of elements smaller than x
+     * <p>
+     * Walks down from the root like a search; every time it goes right, the entry and
+     * its whole left subtree are smaller than x and are added to the count. O(log n).
+     * <p>
+     * @param x - the element to rank, need not be in the tree
+     * @return the number of elements strictly smaller than x
+     */
+    public int rank(T x) {
+        return countBelow(x, false);
+    }
+
+    // number of elements smaller than x, or no greater than x if inclusive
+    private int countBelow(T x, boolean inclusive) {
+        int count = 0;
+        Entry<T> t = (Entry<T>) root;
+        while (t != null) {
+            int cmp = x.compareTo(t.element);
+            if (cmp < 0) {
+                t = (Entry<T>) t.left;
+            } else if (cmp > 0) {
+                count += sizeOf((Entry<T>) t.left) + 1;
+                t = (Entry<T>) t.right;
+            } else {
+                return count + sizeOf((Entry<T>) t.left) + (inclusive ? 1 : 0);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Element of rank k, that is the (k+1)-th smallest
+     * <p>
+     * select(0) is the minimum, select(size - 1) the maximum, and select(size * 99 / 100)
+     * the 99th percentile. O(log n).
+     * <p>
+     * @param k - 0-based rank
+     * @return the element with exactly k smaller elements, or null if k is not in [0, size)
+     */
+    public T select(int k) {
+        if (k < 0 || k >= size) return null;
+        Entry<T> t = (Entry<T>) root;
+        while (true) {
+            int leftSize = sizeOf((Entry<T>) t.left);
+            if (k < leftSize) {
+                t = (Entry<T>) t.left;
+            } else if (k > leftSize) {
+                k -= leftSize + 1;
+                t = (Entry<T>) t.right;
+            } else {
+                return t.element;
+            }
+        }
+    }
+
+    /**
+     * Number of elements between lo and hi, both included
+     * <p>
+     * @param lo - lower bound, need not be in the tree
+     * @param hi - upper bound, need not be in the tree
+     * @return the number of elements e with lo &lt;= e &lt;= hi, 0 if lo &gt; hi
+     */
+    public int countInRange(T lo, T hi) {
+        if (lo.compareTo(hi) > 0) return 0;
+        return countBelow(hi, true) - countBelow(lo, false);
+    }
+
+    /**
+     * Spliterator that splits the tree itself, at subtree roots
+     * <p>
+     * See AVLTreeSpliterator. Splits are O(log n), copy nothing and come out nearly
+     * even, so tree.parallelStream() keeps every worker busy.
+     * <p>
+     * @return an ORDERED, SORTED, DISTINCT, NONNULL, SIZED and SUBSIZED spliterator
+     */
+    @Override
+    public Spliterator<T> spliterator() {
+        return AVLTreeSpliterator.of(this, null, null);
+    }
+
+    /**
+     * View of the elements e with lo &lt;= e &lt; hi
+     * <p>
+     * Nothing is copied: the view reads this tree, so later changes show through it,
+     * and its streams visit only the entries inside the range.
+     * <p>
+     * @param lo - lower bound, included
+     * @param hi - upper bound, excluded
+     * @return the range view
+     * @throws IllegalArgumentException if lo &gt; hi
+     */
+    public Range subSet(T lo, T hi) {
+        Objects.requireNonNull(lo, "lo");
+        Objects.requireNonNull(hi, "hi");
+        if (lo.compareTo(hi) > 0) {
+            throw new IllegalArgumentException("subSet(" + lo + ", " + hi + "): lo > hi");
+        }
+        return new Range(lo, hi);
+    }
+
+    // view of the elements smaller than hi
+    public Range headSet(T hi) {
+        return new Range(null, Objects.requireNonNull(hi, "hi"));
+    }
+
+    // view of the elements at least lo
+    public Range tailSet(T lo) {
+        return new Range(Objects.requireNonNull(lo, "lo"), null);
+    }
+
+    /**
+     * A range of the tree returned by subSet(), headSet() or tailSet()
+     * <p>
+     * size() is two rank() calls, O(log n). Iteration and streams start from the
+     * O(log n) subtrees that make up the range, so they cost nothing for the elements
+     * outside it.
+     */
+    public final class Range implements Iterable<T> {
+        private final T lo;     // included, null for no lower bound
+        private final T hi;     // excluded, null for no upper bound
+
+        Range(T lo, T hi) {
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        private boolean inRange(T x) {
+            return (lo == null || x.compareTo(lo) >= 0) && (hi == null || x.compareTo(hi) < 0);
+        }
+
+        public int size() {
+            int below = (hi == null) ? AVLTree.this.size : rank(hi);
+            return Math.max(0, below - ((lo == null) ? 0 : rank(lo)));
+        }
+
+        public boolean isEmpty() {
+            return first() == null;
+        }
+
+        public boolean contains(T x) {
+            return inRange(x) && AVLTree.this.contains(x);
+        }
+
+        // smallest element of the range, or null if it is empty
+        public T first() {
+            T x = (lo == null) ? min() : ceiling(lo);
+            return (x != null && inRange(x)) ? x : null;
+        }
+
+        // largest element of the range, or null if it is empty
+        public T last() {
+            T x = (hi == null) ? max() : predecessor(hi);
+            return (x != null && inRange(x)) ? x : null;
+        }
+
+        public Iterator<T> iterator() {
+            return Spliterators.iterator(spliterator());
+        }
+
+        @Override
+        public Spliterator<T> spliterator() {
+            return AVLTreeSpliterator.of(AVLTree.this, lo, hi);
+        }
+
+        public Stream<T> stream() {
+            return StreamSupport.stream(spliterator(), false);
+        }
+
+        public Stream<T> parallelStream() {
+            return StreamSupport.stream(spliterator(), true);
+        }
+    }
+
+    // cursor positioned nowhere yet; the first seek() starts at the root
+    public Cursor cursor() {
+        return new Cursor();
+    }
+
+    /**
+     * A finger into the tree that makes searches near the last position cheap
+     * <p>
+     * The cursor keeps the path from the root to its current entry, like s does for
+     * find(), and for every entry on it the open interval its subtree covers (bounded
+     * by the nearest ancestors it lies right and left of). The intervals shrink down
+     * the path, so the entries whose interval holds x are a prefix of it. seek(x)
+     * compares x once with the current entry; that tells which side of it x lies on, so
+     * each interval then takes a single compareTo() against its bound on that side. If
+     * x is within the current entry's interval, the search descends from there. If not,
+     * it gallops down the path from the root (levels 1, 3, 7, 15, ...) and then
+     * bisects, to find the lowest entry whose interval holds x, and descends from it.
+     * <p>
+     * That entry is the lowest common ancestor of the old and new positions, at depth k.
+     * A seek therefore costs what find() would cost from it, plus at most 2 + 2 log2(k + 1)
+     * compareTo() calls to locate it. A scan of consecutive keys stays near the bottom
+     * of the path, so it costs O(1) compares per key amortized. Two keys that straddle a
+     * high entry cost at most a few compares more than find(), since k is small there.
+     * It is not a finger search in O(log d) for rank distance d: without parent or level
+     * links, a neighbour across a high entry still needs a descent of O(log n) levels.
+     * <p>
+     * Changes to the tree (even through another cursor) can rotate entries on the path,
+     * so a cursor remembers modCount and starts again from the root when it has moved.
+     */
+    public final class Cursor {
+        private final Path<T> path = new Path<>(64);
+        private T[] lo;         // lo[i]: every element in the subtree of path.get(i) is greater, null if none
+        private T[] hi;         // hi[i]: every element in that subtree is smaller, null if none
+        private int expectedModCount;
+        private T current;      // element at the cursor, kept apart from the entry, which a removal can reuse
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        Cursor() {
+            lo = (T[]) new Comparable[64];
+            hi = (T[]) new Comparable[64];
+        }
+
+        private void push(BinarySearchTree.Entry<T> t, T low, T high) {
+            int i = path.size();
+            if (i == lo.length) {
+                lo = Arrays.copyOf(lo, 2 * i);
+                hi = Arrays.copyOf(hi, 2 * i);
+            }
+            lo[i] = low;
+            hi[i] = high;
+            path.push(t);
+        }
+
+        // start again from the root if the tree changed since the path was recorded
+        private void validate() {
+            if (expectedModCount != modCount) {
+                path.clear();
+                expectedModCount = modCount;
+            }
+            if (path.isEmpty() && root != null) {
+                push(root, null, null);
+            }
+        }
+
+        /**
+         * Moves to x, or to the entry where the search for it ends
+         * <p>
+         * @param x - the element to look for
+         * @return true if x is in the tree; if not, get() is a neighbour of x
+         */
+        public boolean seek(T x) {
+            validate();
+            current = null;
+            if (path.isEmpty()) return false;
+            int top = path.size() - 1;
+            BinarySearchTree.Entry<T> t = path.peek();
+            int cmp = x.compareTo(t.element);
+            if (top > 0 && !holds(top, x, cmp)) {
+                // the root's interval holds everything; find the lowest entry whose interval holds x
+                int in = 0, out = top;
+                for (int step = 1; in + step < out; step <<= 1) {
+                    if (holds(in + step, x, cmp)) {
+                        in += step;
+                    } else {
+                        out = in + step;
+                        break;
+                    }
+                }
+                while (out - in > 1) {
+                    int mid = (in + out) >>> 1;
+                    if (holds(mid, x, cmp)) {
+                        in = mid;
+                    } else {
+                        out = mid;
+                    }
+                }
+                while (path.size() > in + 1) {
+                    path.pop();
+                }
+                t = path.peek();
+                cmp = x.compareTo(t.element);
+            }
+            while (true) {
+                current = t.element;
+                if (cmp == 0) return true;
+                BinarySearchTree.Entry<T> child = (cmp < 0) ? t.left : t.right;
+                if (child == null) return false;
+                int i = path.size() - 1;
+                if (cmp < 0) {
+                    push(child, lo[i], t.element);
+                } else {
+                    push(child, t.element, hi[i]);
+                }
+                t = child;
+                cmp = x.compareTo(t.element);
+            }
+        }
+
+        // does the interval of path.get(i) hold x? x is on the cmp side of the entry at the top, which it holds
+        private boolean holds(int i, T x, int cmp) {
+            return (cmp < 0) ? (lo[i] == null || x.compareTo(lo[i]) > 0) : (hi[i] == null || x.compareTo(hi[i]) < 0);
+        }
+
+        // element at the cursor, null if the tree is empty or it was never positioned
+        public T get() {
+            return current;
+        }
+
+        /**
+         * Moves to the next larger element
+         * <p>
+         * O(1) amortized over a scan. After a change to the tree the cursor first finds its
+         * way back to the element it was at, or to the closest one if that was removed.
+         * <p>
+         * @return the next element, or null if the cursor is at the maximum (it stays there)
+         */
+        public T next() {
+            T at = current;
+            if (at == null) return null;
+            boolean exact = resync();
+            if (path.isEmpty()) return null;
+            if (!exact && current.compareTo(at) > 0) return current;     // at was removed, landed just after it
+            BinarySearchTree.Entry<T> t = path.peek();
+            int i = path.size() - 1;
+            if (t.right != null) {
+                push(t.right, t.element, hi[i]);
+                t = t.right;
+                while (t.left != null) {
+                    i++;
+                    push(t.left, lo[i], t.element);
+                    t = t.left;
+                }
+                return current = t.element;
+            }
+            for (int j = i; j > 0; j--) {       // the first ancestor we are left of
+                if (path.get(j - 1).left == path.get(j)) {
+                    while (path.size() > j) path.pop();
+                    return current = path.peek().element;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Moves to the next smaller element
+         * <p>
+         * @return the previous element, or null if the cursor is at the minimum (it stays there)
+         */
+        public T prev() {
+            T at = current;
+            if (at == null) return null;
+            boolean exact = resync();
+            if (path.isEmpty()) return null;
+            if (!exact && current.compareTo(at) < 0) return current;     // at was removed, landed just before it
+            BinarySearchTree.Entry<T> t = path.peek();
+            int i = path.size() - 1;
+            if (t.left != null) {
+                push(t.left, lo[i], t.element);
+                t = t.left;
+                while (t.right != null) {
+                    i++;
+                    push(t.right, t.element, hi[i]);
+                    t = t.right;
+                }
+                return current = t.element;
+            }
+            for (int j = i; j > 0; j--) {       // the first ancestor we are right of
+                if (path.get(j - 1).right == path.get(j)) {
+                    while (path.size() > j) path.pop();
+                    return current = path.peek().element;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Makes sure the path leads to current, re-finding it if the tree has changed
+         * <p>
+         * @return true if the cursor is at current; false if current was removed
+         *         meanwhile and the cursor is now at one of its neighbours
+         */
+        private boolean resync() {
+            if (expectedModCount == modCount) return true;
+            T at = current;
+            if (seek(at)) return true;
+            if (current == null) current = at;      // the tree is empty now, stay where we were
+            return false;
+        }
+    }
+
+    /**
+     * Applies a batch of operations and returns what each one returned
+     * <p>
+     * ops[i] is OperationReader.ADD, REMOVE or CONTAINS, applied to keys[i]; result[i]
+     * is what add(), remove() != null or contains() would have returned had the batch
+     * been applied one by one in index order. That holds because the batch is sorted by
+     * key with a stable sort: operations on different keys commute, and operations on
+     * the same key keep their relative order.
+     * <p>
+     * The sorted batch is applied in one left-to-right sweep. A run of contains() does
+     * not restart from the root: the previous search path is kept with, for each entry
+     * on it, the smallest key known to be past its subtree. The next, larger, key backs
+     * up only to the lowest entry whose subtree can still hold it and descends from
+     * there, so neighbouring keys share the top of their paths and the entries they
+     * touch are still in cache. add() and remove() go through the normal methods, and
+     * since their rotations can move entries off the kept path, it is dropped after a
+     * change and the next search starts again from the root.
+     * <p>
+     * @param ops - opcodes, as in OperationReader
+     * @param keys - the key of each operation
+     * @return the result of each operation, in the original order
+     */
+    public boolean[] applyBatch(int[] ops, T[] keys) {
+        int n = ops.length;
+        if (keys.length != n) {
+            throw new IllegalArgumentException(n + " operations but " + keys.length + " keys");
+        }
+        boolean[] results = new boolean[n];
+        int[] order = sortedOrder(keys);
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        Entry<T>[] path = (Entry<T>[]) new Entry[MAX_DEPTH];
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        T[] bound = (T[]) new Comparable[MAX_DEPTH];   // bound[i]: subtree of path[i] holds only keys < bound[i], null for no bound
+        int depth = 0;
+        for (int i : order) {
+            T x = keys[i];
+            switch (ops[i]) {
+                case OperationReader.ADD:
+                    if (add(x)) {
+                        results[i] = true;
+                        depth = 0;
+                    }
+                    break;
+                case OperationReader.REMOVE:
+                    if (remove(x) != null) {
+                        results[i] = true;
+                        depth = 0;
+                    }
+                    break;
+                case OperationReader.CONTAINS: {
+                    // back up to the lowest entry whose subtree can hold x; keys only grow, so only the upper bound matters
+                    while (depth > 0 && bound[depth - 1] != null && x.compareTo(bound[depth - 1]) >= 0) {
+                        depth--;
+                    }
+                    Entry<T> t;
+                    if (depth == 0) {
+                        t = (Entry<T>) root;
+                        if (t == null) break;
+                        path[0] = t;
+                        bound[0] = null;
+                        depth = 1;
+                    } else {
+                        t = path[depth - 1];
+                    }
+                    while (true) {
+                        int cmp = x.compareTo(t.element);
+                        if (cmp == 0) {
+                            results[i] = true;
+                            break;
+                        }
+                        Entry<T> child = (Entry<T>) ((cmp < 0) ? t.left : t.right);
+                        if (child == null) break;
+                        path[depth] = child;
+                        bound[depth] = (cmp < 0) ? t.element : bound[depth - 1];
+                        depth++;
+                        t = child;
+                    }
+                    break;
+                }
+                default:
+                    throw new IllegalArgumentException("bad opcode " + ops[i] + " at index " + i);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Indices of keys in ascending key order, equal keys in index order
+     * <p>
+     * A bottom-up merge sort of the index array, so the keys are neither moved nor
+     * boxed into a comparator.
+     */
+    private static <T extends Comparable<? super T>> int[] sortedOrder(T[] keys) {
+        int n = keys.length;
+        int[] a = new int[n];
+        for (int i = 0; i < n; i++) {
+            a[i] = i;
+        }
+        int[] b = new int[n];
+        for (int width = 1; width < n; width *= 2) {
+            for (int lo = 0; lo < n; lo += 2 * width) {
+                int mid = Math.min(lo + width, n);
+                int hi = Math.min(lo + 2 * width, n);
+                int i = lo, j = mid, k = lo;
+                if (mid == hi || keys[a[mid - 1]].compareTo(keys[a[mid]]) <= 0) {
+                    System.arraycopy(a, lo, b, lo, hi - lo);    // already in order
+                    continue;
+                }
+                while (i < mid && j < hi) {
+                    b[k++] = (keys[a[j]].compareTo(keys[a[i]]) < 0) ? a[j++] : a[i++];
+                }
+                while (i < mid) b[k++] = a[i++];
+                while (j < hi) b[k++] = a[j++];
+            }
+            int[] t = a;
+            a = b;
+            b = t;
+        }
+        return a;
+    }
+
+    /**
+     * The two trees split() leaves, and whether the pivot was in the tree
+     */
+    public static final class Split<T extends Comparable<? super T>> {
+        public final AVLTree<T> left;       // elements smaller than the pivot
+        public final AVLTree<T> right;      // elements greater than the pivot
+        public final boolean found;         // the pivot was in the tree; it is in neither half
+
+        Split(AVLTree<T> left, AVLTree<T> right, boolean found) {
+            this.left = left;
+            this.right = right;
+            this.found = found;
+        }
+    }
+
+    /**
+     * Splits the tree around a pivot, in O(log n)
+     * <p>
+     * The entries along the search path of pivot are rejoined into two AVL trees with
+     * join(), each step costing the height difference of the subtrees it joins, so the
+     * whole split costs O(log n) and no element is copied. This tree is left empty.
+     * <p>
+     * @param pivot - the split key, need not be in the tree
+     * @return the trees of the smaller and of the greater elements, and whether the
+     *         pivot itself was found (and dropped)
+     */
+    public Split<T> split(T pivot) {
+        rebalanceNow();
+        Parts<T> p = split((Entry<T>) root, pivot);
+        replaceRoot(null);
+        AVLTree<T> left = new AVLTree<>();
+        left.replaceRoot(p.left);
+        AVLTree<T> right = new AVLTree<>();
+        right.replaceRoot(p.right);
+        return new Split<>(left, right, p.found);
+    }
+
+    /**
+     * Concatenates two trees around a middle element, in O(log n)
+     * <p>
+     * The shorter tree and mid are hung off the spine of the taller one, where the
+     * heights match, and the path above is rebalanced; the cost is the height
+     * difference of the two trees. With a null mid the largest element of left is
+     * detached first and used in its place. left and right are left empty.
+     * <p>
+     * @param left - the smaller elements
+     * @param mid - an element between the two trees, or null
+     * @param right - the greater elements
+     * @return a tree of all the elements
+     * @throws IllegalArgumentException if the elements are not in order
+     */
+    public static <T extends Comparable<? super T>> AVLTree<T> join(AVLTree<T> left, T mid, AVLTree<T> right) {
+        if (left == right) {
+            throw new IllegalArgumentException("cannot join a tree with itself");
+        }
+        T leftMax = left.max();
+        T rightMin = right.min();
+        if (mid != null) {
+            if ((leftMax != null && leftMax.compareTo(mid) >= 0) || (rightMin != null && mid.compareTo(rightMin) >= 0)) {
+                throw new IllegalArgumentException("join(" + leftMax + ", " + mid + ", " + rightMin + "): elements out of order");
+            }
+        } else if (leftMax != null && rightMin != null && leftMax.compareTo(rightMin) >= 0) {
+            throw new IllegalArgumentException("join(" + leftMax + ", " + rightMin + "): elements out of order");
+        }
+        left.rebalanceNow();
+        right.rebalanceNow();
+        AVLTree<T> joined = new AVLTree<>();
+        Entry<T> l = (Entry<T>) left.root;
+        Entry<T> r = (Entry<T>) right.root;
+        left.replaceRoot(null);
+        right.replaceRoot(null);
+        joined.replaceRoot((mid == null) ? joined.join2(l, r) : joined.join(l, joined.createEntry(mid), r));
+        return joined;
+    }
+
+    /**
+     * Adds every element of other to this tree, emptying other
+     * <p>
+     * Instead of one add() per element this is a join-based union (Blelloch, Ferizovic
+     * and Sun, "Just Join for Parallel Ordered Sets"): other is split around this
+     * tree's root, the two halves are merged with the two subtrees recursively, and
+     * the results are joined back under the root. Merging a tree of m elements into one
+     * of n, m &lt;= n, costs O(m log(n/m + 1)), which is O(m) for trees of similar size
+     * and O(log n) for a single element. Both recursive calls work on disjoint entries,
+     * so above PARALLEL_THRESHOLD entries they run as fork-join tasks on the common
+     * pool.
+     * <p>
+     * The entries of both trees are relinked, not copied; where both trees hold an
+     * equal element, this tree's is kept. Tracers are not thread-safe, so rotations
+     * are only reported to the tracer when the operation runs on the calling thread;
+     * a parallel one reports none.
+     * <p>
+     * @param other - the tree to merge in, left empty
+     */
+    public void union(AVLTree<T> other) {
+        setOperation(UNION, other);
+    }
+
+    /**
+     * Keeps only the elements of this tree that are also in other, emptying other
+     * <p>
+     * Same scheme and cost as union(): other is split around this tree's root, and the
+     * root stays only if it was found in other.
+     * <p>
+     * @param other - the tree to intersect with, left empty
+     */
+    public void intersect(AVLTree<T> other) {
+        setOperation(INTERSECT, other);
+    }
+
+    /**
+     * Removes from this tree every element that is in other, emptying other
+     * <p>
+     * Same scheme and cost as union(), splitting this tree around other's root.
+     * <p>
+     * @param other - the elements to remove, left empty
+     */
+    public void difference(AVLTree<T> other) {
+        setOperation(DIFFERENCE, other);
+    }
+
+    private static final int UNION = 0;
+    private static final int INTERSECT = 1;
+    private static final int DIFFERENCE = 2;
+
+    private void setOperation(int op, AVLTree<T> other) {
+        if (other == this) {
+            if (op == DIFFERENCE) replaceRoot(null);
+            return;
+        }
+        rebalanceNow();
+        other.rebalanceNow();
+        Entry<T> a = (Entry<T>) root;
+        Entry<T> b = (Entry<T>) other.root;
+        other.replaceRoot(null);
+        Entry<T> result;
+        if (sizeOf(a) + sizeOf(b) < PARALLEL_THRESHOLD) {
+            result = setOperation(op, a, b);
+        } else {
+            TreeTracer<T> saved = tracer;
+            tracer = TreeTracer.none();     // the pool threads would rotate, and call it, concurrently
+            try {
+                result = ForkJoinPool.commonPool().invoke(new SetOperationTask(op, a, b));
+            } finally {
+                tracer = saved;
+            }
+        }
+        replaceRoot(result);
+    }
+
+    // installs a new root entry, with size taken from its subtree
+    void replaceRoot(Entry<T> t) {
+        root = t;
+        size = sizeOf(t);
+        modCount++;
+        lastTouchedAll = true;
+        if (cache != null) cache.clear();
+        s.clear();
+    }
+
+    private Entry<T> setOperation(int op, Entry<T> a, Entry<T> b) {
+        switch (op) {
+            case UNION: return union(a, b);
+            case INTERSECT: return intersect(a, b);
+            default: return difference(a, b);
+        }
+    }
+
+    // the two halves of a set operation, computed on the pool when they are big enough
+    @SuppressWarnings("serial")     // never serialized
+    private final class SetOperationTask extends RecursiveTask<Entry<T>> {
+        final int op;
+        final Entry<T> a, b;
+
+        SetOperationTask(int op, Entry<T> a, Entry<T> b) {
+            this.op = op;
+            this.a = a;
+            this.b = b;
+        }
+
+        protected Entry<T> compute() {
+            return setOperation(op, a, b);
+        }
+    }
+
+    // computes op(a1, b1) and op(a2, b2), in parallel if there is enough work; results go in out
+    private void both(int op, Entry<T> a1, Entry<T> b1, Entry<T> a2, Entry<T> b2, Parts<T> out) {
+        if (sizeOf(a1) + sizeOf(b1) + sizeOf(a2) + sizeOf(b2) < PARALLEL_THRESHOLD) {
+            out.left = setOperation(op, a1, b1);
+            out.right = setOperation(op, a2, b2);
+        } else {
+            SetOperationTask leftTask = new SetOperationTask(op, a1, b1);
+            leftTask.fork();
+            out.right = setOperation(op, a2, b2);
+            out.left = leftTask.join();
+        }
+    }
+
+    private Entry<T> union(Entry<T> a, Entry<T> b) {
+        if (a == null) return b;
+        if (b == null) return a;
+        Parts<T> p = split(b, a.element);
+        both(UNION, (Entry<T>) a.left, p.left, (Entry<T>) a.right, p.right, p);
+        return join(p.left, a, p.right);
+    }
+
+    private Entry<T> intersect(Entry<T> a, Entry<T> b) {
+        if (a == null || b == null) return null;
+        Parts<T> p = split(b, a.element);
+        boolean found = p.found;
+        both(INTERSECT, (Entry<T>) a.left, p.left, (Entry<T>) a.right, p.right, p);
+        return found ? join(p.left, a, p.right) : join2(p.left, p.right);
+    }
+
+    private Entry<T> difference(Entry<T> a, Entry<T> b) {
+        if (a == null) return null;
+        if (b == null) return a;
+        Parts<T> p = split(a, b.element);
+        both(DIFFERENCE, p.left, (Entry<T>) b.left, p.right, (Entry<T>) b.right, p);
+        return join2(p.left, p.right);
+    }
+
+    /**
+     * Result of split() and splitLast()
+     * <p>
+     * For split(): the entries below and above the key, and whether it was found.
+     * For splitLast(): left holds the rest of the tree and right its removed maximum.
+     */
+    static final class Parts<T> {
+        Entry<T> left, right;
+        boolean found;
+    }
+
+    /**
+     * Joins two AVL subtrees and a middle entry into one AVL subtree
+     * <p>
+     * Every element of l must be smaller than m's and every element of r larger. If
+     * the heights of l and r are within one, m simply becomes their parent. Otherwise
+     * m is hung off the spine of the taller tree at the first entry whose height is
+     * within one of the shorter tree, and the path back up is fixed with the usual
+     * updateHeight() and rebalance(), one rotation at most per level. That costs
+     * O(|height(l) - height(r)| + 1).
+     * <p>
+     * @param l - the smaller elements, may be null
+     * @param m - the middle entry, its children are overwritten
+     * @param r - the larger elements, may be null
+     * @return the root of the joined subtree
+     */
+    Entry<T> join(Entry<T> l, Entry<T> m, Entry<T> r) {
+        if (height(l) > height(r) + 1) return joinRight(l, m, r);
+        if (height(r) > height(l) + 1) return joinLeft(l, m, r);
+        m.left = l;
+        m.right = r;
+        updateHeight(m);
+        return m;
+    }
+
+    // l is the taller: walk down its right spine
+    private Entry<T> joinRight(Entry<T> l, Entry<T> m, Entry<T> r) {
+        if (height(l) <= height(r) + 1) {
+            m.left = l;
+            m.right = r;
+            updateHeight(m);
+            return m;
+        }
+        l.right = joinRight((Entry<T>) l.right, m, r);
+        updateHeight(l);
+        return rebalance(l);
+    }
+
+    // r is the taller: walk down its left spine
+    private Entry<T> joinLeft(Entry<T> l, Entry<T> m, Entry<T> r) {
+        if (height(r) <= height(l) + 1) {
+            m.left = l;
+            m.right = r;
+            updateHeight(m);
+            return m;
+        }
+        r.left = joinLeft(l, m, (Entry<T>) r.left);
+        updateHeight(r);
+        return rebalance(r);
+    }
+
+    /**
+     * Splits a subtree into the elements smaller and larger than x
+     * <p>
+     * Walks down the search path of x; on the way back up, every entry on the path is
+     * joined with its subtree on the far side of x onto the matching half. The joins
+     * along one path cost O(height) in total. An entry equal to x is dropped from both
+     * halves and reported as found.
+     * <p>
+     * @param t - root of the subtree, destroyed
+     * @param x - the split key
+     * @return the two halves and whether x was found
+     */
+    Parts<T> split(Entry<T> t, T x) {
+        if (t == null) return new Parts<>();
+        int cmp = x.compareTo(t.element);
+        if (cmp == 0) {
+            Parts<T> p = new Parts<>();
+            p.left = (Entry<T>) t.left;
+            p.right = (Entry<T>) t.right;
+            p.found = true;
+            return p;
+        }
+        if (cmp < 0) {
+            Entry<T> right = (Entry<T>) t.right;
+            Parts<T> p = split((Entry<T>) t.left, x);
+            p.right = join(p.right, t, right);
+            return p;
+        } else {
+            Entry<T> left = (Entry<T>) t.left;
+            Parts<T> p = split((Entry<T>) t.right, x);
+            p.left = join(left, t, p.left);
+            return p;
+        }
+    }
+
+    /**
+     * Removes the largest entry of a non-empty subtree
+     * <p>
+     * @param t - root of the subtree, destroyed
+     * @return the rest of the subtree in left, the detached maximum in right
+     */
+    Parts<T> splitLast(Entry<T> t) {
+        if (t.right == null) {
+            Parts<T> p = new Parts<>();
+            p.left = (Entry<T>) t.left;
+            p.right = t;
+            return p;
+        }
+        Entry<T> left = (Entry<T>) t.left;
+        Parts<T> p = splitLast((Entry<T>) t.right);
+        p.left = join(left, t, p.left);
+        return p;
+    }
+
+    // joins two subtrees without a middle entry; every element of l must be smaller than those of r
+    Entry<T> join2(Entry<T> l, Entry<T> r) {
+        if (l == null) return r;
+        Parts<T> p = splitLast(l);
+        return join(p.left, p.right, r);
+    }
+
 	/** 	Verify if the tree is a valid AVL tree, that satisfies 
 	 *	all conditions of BST, and the balancing conditions of AVL trees. 
 	 *	In addition, do not trust the height value stored at the nodes, and
 	 *	heights of nodes have to be verified to be correct.  Make your code
 	 *  as efficient as possible. HINT: Look at the bottom-up solution to verify BST
+	 *  <p>
+	 *  One bottom-up pass that returns only an int per entry, so nothing is allocated:
+	 *  order is checked against the bounds inherited from the ancestors instead of
+	 *  returning subtree minima and maxima. Stored heights and subtree sizes are
+	 *  checked against the recomputed ones, and size against the entry count.
 	*/
 	public boolean verify() {
-        if (root == null) return true; // An empty tree is a valid AVL tree
-        return verify((Entry<T>) root).flag; // Call the helper method starting from the root
+        return sizeOf((Entry<T>) root) == size && verify((Entry<T>) root, null, null) != INVALID;
     }
-    
-    // Helper method that recursively verifies the AVL tree and returns multiple values
-    private Result verify(Entry<T> node) {
-        if (node == null) {
-            // For a null node, return a valid result with base values
-            return new Result(true, null, null, -1);
-        }
-        
-        T cur = node.element; // Current node's element
-        
-        // Initialize current node's minimum and maximum values to its own value
-        T lmin = cur, rmax = cur;
-        int lh = -1, rh = -1; // Initialize left and right heights
-        
-        // Verify the left subtree
-        if (node.left != null) {
-            Result leftResult = verify((Entry<T>) node.left);
-            if (!leftResult.flag || leftResult.max.compareTo(cur) >= 0) {
-                return new Result(false, leftResult.min, leftResult.max, 1 + leftResult.height);
-            }
-            lmin = leftResult.min; // Update the minimum value
-            lh = leftResult.height; // Update the left height
-        }
-        
-        // Verify the right subtree
-        if (node.right != null) {
-            Result rightResult = verify((Entry<T>) node.right);
-            if (!rightResult.flag || rightResult.min.compareTo(cur) <= 0) {
-                return new Result(false, rightResult.min, rightResult.max, 1 + rightResult.height);
-            }
-            rmax = rightResult.max; // Update the maximum value
-            rh = rightResult.height; // Update the right height
-        }
-        
-        // Check AVL balance condition: |lh - rh| <= 1
-        if (Math.abs(lh - rh) > 1) {
-            return new Result(false, lmin, rmax, node.height);
-        }
-        
-        // Calculate the current node's height
-        int height = 1 + Math.max(lh, rh);
-        
-        // Return the final result for the current subtree
-        return new Result(true, lmin, rmax, height);
+
+    static final int INVALID = -2;     // a height that no subtree has
+
+    /**
+     * Verify the tree, allowing for the dirty entries of relaxed-balance mode
+     * <p>
+     * With relaxed false this is verify(). With relaxed true a dirty entry only needs
+     * to be in order and to have the right subtree size; its height and balance are not
+     * checked. Every clean entry must still root a valid AVL tree, which also means that
+     * no clean entry has a dirty child. Those are the invariants rebalanceNow() needs,
+     * and once it has run, verify() holds again.
+     * <p>
+     * @param relaxed - whether dirty entries are allowed
+     * @return true if the tree satisfies the (relaxed) invariants
+     */
+    public boolean verify(boolean relaxed) {
+        if (!relaxed) return verify();
+        return sizeOf((Entry<T>) root) == size && verifyRelaxed((Entry<T>) root, null, null) != INVALID;
     }
-    
-    // Helper class to store multiple return values
-    private class Result {
-        boolean flag; 
-        T min; 
-        T max; 
-        int height; 
-        
-        Result(boolean flag, T min, T max, int height) {
-            this.flag = flag;
-            this.min = min;
-            this.max = max;
-            this.height = height;
+
+    // like verify(t, lo, hi), but the dirty top of the subtree is only checked for order and sizes
+    private int verifyRelaxed(Entry<T> t, T lo, T hi) {
+        if (t == null || t.height != DIRTY) return verify(t, lo, hi);
+        if (!inBounds(t.element, lo, hi)) return INVALID;
+        if (verifyRelaxed((Entry<T>) t.left, lo, t.element) == INVALID) return INVALID;
+        if (verifyRelaxed((Entry<T>) t.right, t.element, hi) == INVALID) return INVALID;
+        return (t.size == 1 + sizeOf((Entry<T>) t.left) + sizeOf((Entry<T>) t.right)) ? DIRTY : INVALID;
+    }
+
+    /**
+     * Helper method that recursively verifies a subtree
+     * <p>
+     * @param t - root of the subtree
+     * @param lo - every element must be greater than this, null for no bound
+     * @param hi - every element must be smaller than this, null for no bound
+     * @return the recomputed height of the subtree, or INVALID
+     */
+    private int verify(Entry<T> t, T lo, T hi) {
+        if (t == null) return -1;
+        if (!inBounds(t.element, lo, hi)) return INVALID;
+        int lh = verify((Entry<T>) t.left, lo, t.element);
+        if (lh == INVALID) return INVALID;
+        int rh = verify((Entry<T>) t.right, t.element, hi);
+        if (rh == INVALID) return INVALID;
+        return checkEntry(t, lh, rh);
+    }
+
+    private boolean inBounds(T x, T lo, T hi) {
+        return (lo == null || x.compareTo(lo) > 0) && (hi == null || x.compareTo(hi) < 0);
+    }
+
+    // checks balance, stored height and stored size of t given its children's heights; returns t's height or INVALID
+    private int checkEntry(Entry<T> t, int lh, int rh) {
+        int h = 1 + Math.max(lh, rh);
+        if (Math.abs(lh - rh) > 1 || t.height != h
+                || t.size != 1 + sizeOf((Entry<T>) t.left) + sizeOf((Entry<T>) t.right)) {
+            return INVALID;
         }
+        return h;
+    }
+
+    /**
+     * verify() split across the common ForkJoin pool
+     * <p>
+     * The two subtrees of an entry are independent, so each subtree with at least
+     * PARALLEL_THRESHOLD entries (by its stored size) has its left half checked by a
+     * forked task. Small trees are checked on the calling thread.
+     * <p>
+     * @return true if the tree is a valid AVL tree
+     */
+    public boolean verifyParallel() {
+        Entry<T> t = (Entry<T>) root;
+        if (sizeOf(t) != size) return false;
+        if (size < PARALLEL_THRESHOLD) return verify(t, null, null) != INVALID;
+        return ForkJoinPool.commonPool().invoke(new VerifyTask(t, null, null)) != INVALID;
+    }
+
+    @SuppressWarnings("serial")     // never serialized
+    private final class VerifyTask extends RecursiveTask<Integer> {
+        final Entry<T> t;
+        final T lo, hi;
+
+        VerifyTask(Entry<T> t, T lo, T hi) {
+            this.t = t;
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        protected Integer compute() {
+            if (sizeOf(t) < PARALLEL_THRESHOLD) return verify(t, lo, hi);
+            if (!inBounds(t.element, lo, hi)) return INVALID;
+            VerifyTask left = new VerifyTask((Entry<T>) t.left, lo, t.element);
+            left.fork();
+            int rh = new VerifyTask((Entry<T>) t.right, t.element, hi).compute();
+            int lh = left.join();
+            if (lh == INVALID || rh == INVALID) return INVALID;
+            return checkEntry(t, lh, rh);
+        }
+    }
+
+    /**
+     * Re-checks only what the last add() or remove() can have changed, in O(log n)
+     * <p>
+     * add() and remove() only change the entries on one search path: the path to the
+     * added element, or to the parent of the entry remove() spliced out. Rotations
+     * along it only move entries between a path entry and its children. So, assuming
+     * the tree was valid before the last change, it is valid after it if every entry on
+     * that path is within the bounds set by its ancestors, and it and its children have
+     * consistent heights, sizes, balance and order. Heights are taken as stored in the
+     * children, so an invalid tree from before is not necessarily detected; verify()
+     * checks everything.
+     * <p>
+     * After any other kind of change (bulk load, set operations, split/join, relaxed
+     * changes) there is no single path, and this runs verify(), or verify(true) in
+     * relaxed mode.
+     * <p>
+     * @return true if the entries touched by the last change are consistent
+     */
+    public boolean verifyIncremental() {
+        if (lastTouchedAll) {
+            boolean valid = verify(relaxed);
+            lastTouchedAll = !valid;
+            return valid;
+        }
+        if (sizeOf((Entry<T>) root) != size) return false;
+        T x = lastTouched;
+        T lo = null, hi = null;
+        Entry<T> t = (Entry<T>) root;
+        while (t != null) {
+            if (!inBounds(t.element, lo, hi) || !checkLocal(t)) return false;
+            Entry<T> l = (Entry<T>) t.left, r = (Entry<T>) t.right;
+            if ((l != null && (!inBounds(l.element, lo, t.element) || !checkLocal(l)))
+                    || (r != null && (!inBounds(r.element, t.element, hi) || !checkLocal(r)))) {
+                return false;
+            }
+            int cmp = (x == null) ? 0 : x.compareTo(t.element);
+            if (cmp < 0) {
+                hi = t.element;
+                t = l;
+            } else if (cmp > 0) {
+                lo = t.element;
+                t = r;
+            } else {
+                break;
+            }
+        }
+        return true;
     }
-}
 
+    // checks t against the heights and sizes stored in its children
+    private boolean checkLocal(Entry<T> t) {
+        return checkEntry(t, height((Entry<T>) t.left), height((Entry<T>) t.right)) != INVALID;
+    }
+}
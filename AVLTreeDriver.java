@@ -1,51 +1,46 @@
 package jxc033200;
 
-import java.io.File;
-import java.io.FileNotFoundException;
-import java.util.Scanner;
+import java.io.IOException;
+import java.util.Arrays;
 
 public class AVLTreeDriver {
-	public static void main(String[] args) throws FileNotFoundException {
-		Scanner sc;
-		if (args.length > 0) {
-			File file = new File(args[0]);
-			sc = new Scanner(file);
-		} else {
-			sc = new Scanner(System.in);
-		}		
-		sc = new Scanner(new File("bst-t05-no-remove.txt"));
-		String operation = "";
+	public static void main(String[] args) throws IOException {
+		OperationReader in = OperationReader.open(args);	// args[0] in text or binary format, or stdin
+		int batchSize = (args.length > 1) ? Integer.parseInt(args[1]) : 0;	// optional args[1]: apply in sorted batches
+		int operation;
 		long operand = 0;
 		int modValue = 999983;
 		long result = 0;
-		boolean VERIFY = true;
+		boolean VERIFY = true;	// O(log n) check of the touched path after each change, full verify() at the end
 		AVLTree<Long> avlTree = new AVLTree<>();
 		// Initialize the timer
 		Timer timer = new Timer();
 
-		while (!((operation = sc.next()).equals("End"))) {
+		if (batchSize > 0) {
+			result = runBatches(in, avlTree, batchSize) % modValue;	// checked by the full verify() at the end
+		} else while ((operation = in.next()) != OperationReader.END) {
 			switch (operation) {
-				case "Add": {
-					operand = sc.nextLong();
+				case OperationReader.ADD: {
+					operand = in.operand();
 					if(avlTree.add(operand)) {
 						result = (result + 1) % modValue;
-						if(VERIFY && !avlTree.verify())
+						if(VERIFY && !avlTree.verifyIncremental())
 							System.out.println("Invalid AVL tree ");
 							
 					}
 					break;
 				}
-				case "Remove": {
-					operand = sc.nextLong();
+				case OperationReader.REMOVE: {
+					operand = in.operand();
 					if (avlTree.remove(operand) != null) {
 						result = (result + 1) % modValue;
-						if(VERIFY && !avlTree.verify())
+						if(VERIFY && !avlTree.verifyIncremental())
 							System.out.println("Invalid AVL tree ");			
 					}
 					break;
 				}
-				case "Contains":{
-					operand = sc.nextLong();
+				case OperationReader.CONTAINS:{
+					operand = in.operand();
 					if (avlTree.contains(operand)) {
 						result = (result + 1) % modValue;
 					}
@@ -56,9 +51,53 @@ public class AVLTreeDriver {
 
 		// End Time
 		timer.end();
+		in.close();
 		
 		System.out.println(result);
 		System.out.println("Is valid AVL tree? " +  avlTree.verify());
 		System.out.println(timer);		
 	}
+
+	/**
+	 * Reads operations batchSize at a time and hands each batch to applyBatch()
+	 * <p>
+	 * The results of a batch are the same as applying it one operation at a time, so
+	 * the count of successful operations is the same as in the normal loop.
+	 * <p>
+	 * A batch can change many paths, so there is no cheap check after each one; a full
+	 * verify() per batch would make small batches quadratic. Like the normal loop, the
+	 * driver verifies the whole tree once at the end.
+	 * <p>
+	 * @param in - the operations
+	 * @param avlTree - the tree to apply them to
+	 * @param batchSize - operations per batch
+	 * @return the number of operations that returned true
+	 */
+	static long runBatches(OperationReader in, AVLTree<Long> avlTree, int batchSize) throws IOException {
+		int[] ops = new int[batchSize];
+		Long[] keys = new Long[batchSize];
+		long count = 0;
+		boolean more = true;
+		while (more) {
+			int n = 0;
+			while (n < batchSize) {
+				int op = in.next();
+				if (op == OperationReader.END) {
+					more = false;
+					break;
+				}
+				ops[n] = op;
+				keys[n] = in.operand();
+				n++;
+			}
+			if (n == 0) break;
+			boolean[] results = (n == batchSize)
+					? avlTree.applyBatch(ops, keys)
+					: avlTree.applyBatch(Arrays.copyOf(ops, n), Arrays.copyOf(keys, n));
+			for (boolean r : results) {
+				if (r) count++;
+			}
+		}
+		return count;
+	}
 }
@@ -0,0 +1,196 @@
+package jxc033200;
+
+import java.util.ConcurrentModificationException;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+/**
+ * AVLTree that stores a value with every key
+ * <p>
+ * The keys are the tree's elements, so contains(), remove(), iteration, the ordered
+ * queries and the order statistics all work on them unchanged. The entries carry the
+ * value as one more field.
+ * <p>
+ * put(), putIfAbsent(), computeIfAbsent() and merge() do a single find(). If the key
+ * is there, its value is updated in place with no retrace. If it is not, the new entry
+ * is attached where that find() ended and the path it left on s is retraced once,
+ * exactly as add() does it. A contains() followed by an add() costs two descents.
+ * <p>
+ * As in java.util.TreeMap, replacing a value keeps the key object already in the map.
+ * The set operations relink entries, so union(), intersect() and difference() of two
+ * AVLTreeMaps keep the values. split() and AVLTree.join() return plain AVLTrees, which
+ * only hold the keys, so they are not meant for maps.
+ * <p>
+ * @param <K> - key type
+ * @param <V> - value type
+ */
+public class AVLTreeMap<K extends Comparable<? super K>, V> extends AVLTree<K> {
+    static final class MapEntry<K, V> extends AVLTree.Entry<K> {
+        V value;
+
+        MapEntry(K key) {
+            super(key, null, null);
+        }
+    }
+
+    public AVLTreeMap() {
+        super();
+    }
+
+    // every entry of a map carries a value, including the ones add() and bulk loading create
+    @Override
+    public Entry<K> createEntry(K key) {
+        return new MapEntry<>(key);
+    }
+
+    // an entry with two children is removed by moving its successor into it, value included
+    @Override
+    void moveContents(BinarySearchTree.Entry<K> from, BinarySearchTree.Entry<K> to) {
+        super.moveContents(from, to);
+        entry(to).value = entry(from).value;
+    }
+
+    /**
+     * Value stored for a key
+     * <p>
+     * Goes through the lookup cache if enableCache() was called. The cache holds the
+     * entry, so values replaced in place are seen without invalidating it.
+     * <p>
+     * @param key - the key to look up
+     * @return its value, or null if the key is not in the map
+     */
+    public V get(K key) {
+        Entry<K> t = lookup(key);
+        return (t == null) ? null : entry(t).value;
+    }
+
+    /**
+     * Associates a value with a key, replacing any previous value
+     * <p>
+     * @param key - the key
+     * @param value - its new value
+     * @return the previous value, or null if the key was not in the map
+     */
+    public V put(K key, V value) {
+        BinarySearchTree.Entry<K> t = find(key);
+        if (found(t)) {
+            MapEntry<K, V> e = entry(t);
+            V old = e.value;
+            e.value = value;
+            return old;
+        }
+        insertAt(t, key, value);
+        return null;
+    }
+
+    /**
+     * Associates a value with a key, unless it already has a non-null value
+     * <p>
+     * @param key - the key
+     * @param value - the value to store if there is none
+     * @return the existing value, or null if value was stored
+     */
+    public V putIfAbsent(K key, V value) {
+        BinarySearchTree.Entry<K> t = find(key);
+        if (!found(t)) {
+            insertAt(t, key, value);
+            return null;
+        }
+        MapEntry<K, V> e = entry(t);
+        V old = e.value;
+        if (old == null) {
+            e.value = value;
+        }
+        return old;
+    }
+
+    /**
+     * Value of a key, computing and storing it first if there is none
+     * <p>
+     * The function runs between the descent and the insertion, so it must not change
+     * the map: the path find() left would no longer be valid. As HashMap does, such a
+     * change is detected and reported instead of corrupting the tree.
+     * <p>
+     * @param key - the key
+     * @param mappingFunction - computes the value from the key; a null result stores nothing
+     * @return the existing or computed value, or null if the function returned null
+     * @throws ConcurrentModificationException if the function modified the map
+     */
+    public V computeIfAbsent(K key, Function<? super K, ? extends V> mappingFunction) {
+        BinarySearchTree.Entry<K> t = find(key);
+        MapEntry<K, V> e = found(t) ? entry(t) : null;
+        if (e != null && e.value != null) return e.value;
+        int expectedModCount = modCount;
+        V value = mappingFunction.apply(key);
+        if (modCount != expectedModCount) {
+            throw new ConcurrentModificationException("mapping function modified the map");
+        }
+        if (value == null) return null;
+        if (e != null) {
+            e.value = value;
+        } else {
+            insertAt(t, key, value);
+        }
+        return value;
+    }
+
+    /**
+     * Combines a value into the one stored for a key
+     * <p>
+     * If the key has no value, value is stored. Otherwise the stored value becomes
+     * remappingFunction(old, value), and if that is null the key is removed, still
+     * without a second descent: the entry is unlinked using the path find() left.
+     * <p>
+     * @param key - the key
+     * @param value - the value to store or combine, not null
+     * @param remappingFunction - combines the old value with value; must not modify the map
+     * @return the new value, or null if the key was removed
+     * @throws NullPointerException if value is null
+     * @throws ConcurrentModificationException if the function modified the map
+     */
+    public V merge(K key, V value, BiFunction<? super V, ? super V, ? extends V> remappingFunction) {
+        if (value == null) {
+            throw new NullPointerException("merge value");
+        }
+        BinarySearchTree.Entry<K> t = find(key);
+        if (!found(t)) {
+            insertAt(t, key, value);
+            return value;
+        }
+        MapEntry<K, V> e = entry(t);
+        if (e.value == null) {
+            e.value = value;
+            return value;
+        }
+        int expectedModCount = modCount;
+        V merged = remappingFunction.apply(e.value, value);
+        if (modCount != expectedModCount) {
+            throw new ConcurrentModificationException("remapping function modified the map");
+        }
+        if (merged == null) {
+            unlink(e);
+            fixAfterDelete();
+            return null;
+        }
+        e.value = merged;
+        return merged;
+    }
+
+    // every entry of a map is a MapEntry (see createEntry()), so this is the one cast the map needs
+    @SuppressWarnings("unchecked")
+    private MapEntry<K, V> entry(BinarySearchTree.Entry<K> t) {
+        return (MapEntry<K, V>) t;
+    }
+
+    // did the find() that returned t find the key? (t is null if the map is empty)
+    private boolean found(BinarySearchTree.Entry<K> t) {
+        return t != null && lastCompare == 0;
+    }
+
+    // attaches a new entry for key below t, where find(key) failed, and retraces the path it left on s
+    private void insertAt(BinarySearchTree.Entry<K> t, K key, V value) {
+        MapEntry<K, V> e = entry(attach(t, key));
+        e.value = value;
+        fixAfterInsert(key);
+    }
+}
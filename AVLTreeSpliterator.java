@@ -0,0 +1,247 @@
+package jxc033200;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.ConcurrentModificationException;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+/**
+ * Spliterator over an AVLTree, or over a range of it, that splits at subtree roots
+ * <p>
+ * What is left to visit is a stack of chunks, the first one on top. A chunk is either
+ * a whole subtree or a single entry. The whole tree is one chunk. A range [lo, hi) is
+ * cut, in one descent on each side, into the O(log n) subtrees and entries that lie
+ * entirely inside it, so nothing out of range is ever visited or compared again.
+ * <p>
+ * Every entry knows its subtree size, so the exact number of remaining elements is
+ * always known (SIZED and SUBSIZED). trySplit() hands off the leading chunks that add
+ * up to half of it. A subtree too big to go whole is opened at its root into left
+ * subtree, root and right subtree. The AVL height bound keeps the two sides of every
+ * entry close in size, so the halves are nearly even after a few steps, and a split
+ * costs O(log n) with nothing copied.
+ * <p>
+ * The spliterator binds to the tree when it is created. Like the iterators it is
+ * fail-fast: a structural change to the tree is reported with a
+ * ConcurrentModificationException. Parallel streams only read the tree, so they are
+ * safe as long as nobody writes to it meanwhile.
+ * <p>
+ * @param <T> - element type
+ */
+final class AVLTreeSpliterator<T extends Comparable<? super T>> implements Spliterator<T> {
+    static final int CHARACTERISTICS = ORDERED | SORTED | DISTINCT | NONNULL | SIZED | SUBSIZED;
+
+    private final AVLTree<T> tree;
+    private final int expectedModCount;
+    private AVLTree.Entry<T>[] chunks;      // chunks[n - 1] is visited first
+    private boolean[] whole;                // whole[i]: chunks[i] stands for its subtree, else for itself
+    private int n;
+    private long remaining;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private AVLTreeSpliterator(AVLTree<T> tree, int expectedModCount, int capacity) {
+        this.tree = tree;
+        this.expectedModCount = expectedModCount;
+        chunks = (AVLTree.Entry<T>[]) new AVLTree.Entry[Math.max(capacity, 8)];
+        whole = new boolean[chunks.length];
+    }
+
+    /**
+     * Spliterator over the elements e with lo &lt;= e &lt; hi
+     * <p>
+     * @param tree - the tree
+     * @param lo - lower bound, included, or null for none
+     * @param hi - upper bound, excluded, or null for none
+     */
+    @SuppressWarnings("unchecked")
+    static <T extends Comparable<? super T>> AVLTreeSpliterator<T> of(AVLTree<T> tree, T lo, T hi) {
+        AVLTree.Entry<T> root = (AVLTree.Entry<T>) tree.root;
+        AVLTreeSpliterator<T> sp = new AVLTreeSpliterator<>(tree, tree.modCount, 2 * ((root == null) ? 1 : root.height + 2));
+        AVLTree.Entry<T> t = root;
+        while (t != null) {     // the highest entry inside the range; everything in it hangs below
+            if (lo != null && t.element.compareTo(lo) < 0) {
+                t = (AVLTree.Entry<T>) t.right;
+            } else if (hi != null && t.element.compareTo(hi) >= 0) {
+                t = (AVLTree.Entry<T>) t.left;
+            } else {
+                break;
+            }
+        }
+        if (t == null) return sp;
+        // pushed last chunk first: the part of t.right below hi, then t, then the part of t.left from lo
+        sp.pushBelow((AVLTree.Entry<T>) t.right, hi);
+        sp.push(t, false);
+        sp.pushFrom((AVLTree.Entry<T>) t.left, lo);
+        return sp;
+    }
+
+    // pushes the elements of subtree t that are smaller than hi (all of them if hi is null)
+    @SuppressWarnings("unchecked")
+    private void pushBelow(AVLTree.Entry<T> t, T hi) {
+        if (hi == null) {
+            push(t, true);
+            return;
+        }
+        int mark = n;
+        while (t != null) {     // in order these come first to last, so they are pushed and reversed below
+            if (t.element.compareTo(hi) < 0) {
+                push((AVLTree.Entry<T>) t.left, true);
+                push(t, false);
+                t = (AVLTree.Entry<T>) t.right;
+            } else {
+                t = (AVLTree.Entry<T>) t.left;
+            }
+        }
+        for (int i = mark, j = n - 1; i < j; i++, j--) {
+            AVLTree.Entry<T> c = chunks[i];
+            chunks[i] = chunks[j];
+            chunks[j] = c;
+            boolean w = whole[i];
+            whole[i] = whole[j];
+            whole[j] = w;
+        }
+    }
+
+    // pushes the elements of subtree t that are at least lo (all of them if lo is null)
+    @SuppressWarnings("unchecked")
+    private void pushFrom(AVLTree.Entry<T> t, T lo) {
+        if (lo == null) {
+            push(t, true);
+            return;
+        }
+        while (t != null) {     // deeper entries come first, so they end on top
+            if (t.element.compareTo(lo) >= 0) {
+                push((AVLTree.Entry<T>) t.right, true);
+                push(t, false);
+                t = (AVLTree.Entry<T>) t.left;
+            } else {
+                t = (AVLTree.Entry<T>) t.right;
+            }
+        }
+    }
+
+    private void push(AVLTree.Entry<T> t, boolean subtree) {
+        if (t == null) return;
+        if (n == chunks.length) {
+            chunks = Arrays.copyOf(chunks, 2 * n);
+            whole = Arrays.copyOf(whole, 2 * n);
+        }
+        chunks[n] = t;
+        whole[n] = subtree;
+        n++;
+        remaining += subtree ? t.size : 1;
+    }
+
+    // replaces the subtree chunk at index i by its right subtree, root and left subtree
+    @SuppressWarnings("unchecked")
+    private void open(int i) {
+        AVLTree.Entry<T> t = chunks[i];
+        AVLTree.Entry<T> l = (AVLTree.Entry<T>) t.left;
+        AVLTree.Entry<T> r = (AVLTree.Entry<T>) t.right;
+        int extra = ((l == null) ? 0 : 1) + ((r == null) ? 0 : 1);
+        if (n + extra > chunks.length) {
+            chunks = Arrays.copyOf(chunks, 2 * (n + extra));
+            whole = Arrays.copyOf(whole, chunks.length);
+        }
+        System.arraycopy(chunks, i + 1, chunks, i + 1 + extra, n - i - 1);
+        System.arraycopy(whole, i + 1, whole, i + 1 + extra, n - i - 1);
+        n += extra;
+        int j = i;
+        if (r != null) {
+            chunks[j] = r;
+            whole[j++] = true;
+        }
+        chunks[j] = t;
+        whole[j++] = false;
+        if (l != null) {
+            chunks[j] = l;
+            whole[j] = true;
+        }
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super T> action) {
+        if (action == null) throw new NullPointerException();
+        if (tree.modCount != expectedModCount) throw new ConcurrentModificationException();
+        if (n == 0) return false;
+        while (whole[n - 1]) {      // open subtrees on top until the smallest element is a single entry
+            open(n - 1);
+        }
+        AVLTree.Entry<T> t = chunks[--n];
+        chunks[n] = null;
+        remaining--;
+        action.accept(t.element);
+        return true;
+    }
+
+    @Override
+    public void forEachRemaining(Consumer<? super T> action) {
+        if (action == null) throw new NullPointerException();
+        while (n > 0) {
+            AVLTree.Entry<T> t = chunks[--n];
+            chunks[n] = null;
+            if (whole[n]) {
+                inOrder(t, action);
+            } else {
+                action.accept(t.element);
+            }
+        }
+        remaining = 0;
+        if (tree.modCount != expectedModCount) throw new ConcurrentModificationException();
+    }
+
+    // visits a whole subtree; recursion depth is its height, at most about 1.44 log2(n)
+    private static <T> void inOrder(BinarySearchTree.Entry<T> t, Consumer<? super T> action) {
+        while (t != null) {
+            inOrder(t.left, action);
+            action.accept(t.element);
+            t = t.right;
+        }
+    }
+
+    @Override
+    public Spliterator<T> trySplit() {
+        if (remaining < 2) return null;
+        long half = remaining / 2;
+        long taken = 0;
+        int k = 0;      // chunks taken from the top
+        while (taken < half) {
+            int i = n - 1 - k;
+            long size = whole[i] ? chunks[i].size : 1;
+            if (taken + size <= half) {
+                taken += size;
+                k++;
+            } else if (whole[i]) {
+                open(i);        // too big to hand off whole, split it at its root and look again
+            } else {
+                break;
+            }
+        }
+        if (k == 0) return null;
+        AVLTreeSpliterator<T> prefix = new AVLTreeSpliterator<>(tree, expectedModCount, k + 8);
+        System.arraycopy(chunks, n - k, prefix.chunks, 0, k);
+        System.arraycopy(whole, n - k, prefix.whole, 0, k);
+        prefix.n = k;
+        prefix.remaining = taken;
+        Arrays.fill(chunks, n - k, n, null);
+        n -= k;
+        remaining -= taken;
+        return prefix;
+    }
+
+    @Override
+    public long estimateSize() {
+        return remaining;
+    }
+
+    @Override
+    public int characteristics() {
+        return CHARACTERISTICS;
+    }
+
+    // natural ordering
+    @Override
+    public Comparator<? super T> getComparator() {
+        return null;
+    }
+}
@@ -0,0 +1,330 @@
+package jxc033200;
+
+import java.util.Arrays;
+
+/**
+ * Ordered set stored in a B-tree, an alternative to AVLTree for large sets
+ * <p>
+ * Same add/remove/contains/verify operations as AVLTree. Each node keeps up to 2t-1
+ * keys (t = 16: 31) in one array and is searched with a binary search, so a lookup
+ * visits about log16(n) nodes instead of about 1.44 log2(n) separately allocated
+ * entries. With object keys every comparison still dereferences the key itself;
+ * LongBTreeSet stores the keys in the node for the full effect.
+ * <p>
+ * See LongBTreeSet for how add() and remove() keep the tree balanced.
+ * <p>
+ * @param <T> - element type
+ */
+public class BTreeSet<T extends Comparable<? super T>> {
+    static final int DEFAULT_MIN_DEGREE = LongBTreeSet.DEFAULT_MIN_DEGREE;
+
+    static final class Node {
+        final Object[] keys;
+        Node[] children;    // null for a leaf
+        int n;              // number of keys in use
+
+        Node(int maxKeys, boolean leaf) {
+            keys = new Object[maxKeys];
+            children = leaf ? null : new Node[maxKeys + 1];
+        }
+
+        boolean isLeaf() {
+            return children == null;
+        }
+    }
+
+    final int t;            // minimum degree: every node but the root has t-1 to 2t-1 keys
+    Node root;
+    int size;
+
+    public BTreeSet() {
+        this(DEFAULT_MIN_DEGREE);
+    }
+
+    /**
+     * @param minDegree - t, at least 2; nodes hold up to 2t-1 keys
+     */
+    public BTreeSet(int minDegree) {
+        if (minDegree < 2) {
+            throw new IllegalArgumentException("minimum degree must be at least 2, got " + minDegree);
+        }
+        t = minDegree;
+        root = new Node(2 * t - 1, true);
+        size = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    @SuppressWarnings("unchecked")
+    private T key(Node node, int i) {
+        return (T) node.keys[i];
+    }
+
+    // index of x in node, or -(insertion point) - 1
+    private int search(Node node, T x) {
+        int lo = 0;
+        int hi = node.n - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int cmp = x.compareTo(key(node, mid));
+            if (cmp < 0) {
+                hi = mid - 1;
+            } else if (cmp > 0) {
+                lo = mid + 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(lo + 1);
+    }
+
+    /**
+     * Is x contained in the set?
+     * <p>
+     * @param x - the element to search for
+     * @return true if found, false if not found
+     */
+    public boolean contains(T x) {
+        Node node = root;
+        while (true) {
+            int i = search(node, x);
+            if (i >= 0) return true;
+            if (node.isLeaf()) return false;
+            node = node.children[-i - 1];
+        }
+    }
+
+    /**
+     * Add x to the set
+     * <p>
+     * If an equal element is present it is replaced, as in BinarySearchTree.add().
+     * <p>
+     * @param x - the element to add
+     * @return true if a new element was added, false if an equal one was replaced
+     */
+    public boolean add(T x) {
+        if (root.n == 2 * t - 1) {
+            Node newRoot = new Node(2 * t - 1, false);
+            newRoot.children[0] = root;
+            splitChild(newRoot, 0);
+            root = newRoot;
+        }
+        Node node = root;
+        while (true) {
+            int i = search(node, x);
+            if (i >= 0) {
+                node.keys[i] = x;
+                return false;
+            }
+            i = -i - 1;
+            if (node.isLeaf()) {
+                System.arraycopy(node.keys, i, node.keys, i + 1, node.n - i);
+                node.keys[i] = x;
+                node.n++;
+                size++;
+                return true;
+            }
+            if (node.children[i].n == 2 * t - 1) {
+                splitChild(node, i);
+                int cmp = x.compareTo(key(node, i));
+                if (cmp == 0) {
+                    node.keys[i] = x;
+                    return false;
+                }
+                if (cmp > 0) i++;
+            }
+            node = node.children[i];
+        }
+    }
+
+    // splits the full child i of parent around its median key, which moves up into parent
+    private void splitChild(Node parent, int i) {
+        Node y = parent.children[i];
+        Node z = new Node(2 * t - 1, y.isLeaf());
+        System.arraycopy(y.keys, t, z.keys, 0, t - 1);
+        Arrays.fill(y.keys, t, 2 * t - 1, null);
+        z.n = t - 1;
+        if (!y.isLeaf()) {
+            System.arraycopy(y.children, t, z.children, 0, t);
+            Arrays.fill(y.children, t, 2 * t, null);
+        }
+        System.arraycopy(parent.children, i + 1, parent.children, i + 2, parent.n - i);
+        parent.children[i + 1] = z;
+        System.arraycopy(parent.keys, i, parent.keys, i + 1, parent.n - i);
+        parent.keys[i] = y.keys[t - 1];
+        y.keys[t - 1] = null;
+        y.n = t - 1;
+        parent.n++;
+    }
+
+    /**
+     * Remove x from the set
+     * <p>
+     * @param x - the element to remove
+     * @return x if it was removed, null if it was not in the set
+     */
+    public T remove(T x) {
+        boolean removed = delete(root, x);
+        if (root.n == 0 && !root.isLeaf()) {
+            root = root.children[0];
+        }
+        if (!removed) return null;
+        size--;
+        return x;
+    }
+
+    private boolean delete(Node node, T x) {
+        while (true) {
+            int i = search(node, x);
+            if (i >= 0) {
+                if (node.isLeaf()) {
+                    System.arraycopy(node.keys, i + 1, node.keys, i, node.n - i - 1);
+                    node.keys[--node.n] = null;
+                    return true;
+                }
+                Node left = node.children[i];
+                Node right = node.children[i + 1];
+                if (left.n >= t) {              // replace with the predecessor, then delete that
+                    x = max(left);
+                    node.keys[i] = x;
+                    node = left;
+                } else if (right.n >= t) {      // replace with the successor, then delete that
+                    x = min(right);
+                    node.keys[i] = x;
+                    node = right;
+                } else {                        // merge, x ends up in the middle of left
+                    merge(node, i);
+                    node = left;
+                }
+                continue;
+            }
+            if (node.isLeaf()) return false;
+            i = -i - 1;
+            if (node.children[i].n < t) {
+                i = fill(node, i);
+            }
+            node = node.children[i];
+        }
+    }
+
+    private T max(Node node) {
+        while (!node.isLeaf()) {
+            node = node.children[node.n];
+        }
+        return key(node, node.n - 1);
+    }
+
+    private T min(Node node) {
+        while (!node.isLeaf()) {
+            node = node.children[0];
+        }
+        return key(node, 0);
+    }
+
+    // gives child i of node at least t keys; returns the index of the child that now covers its range
+    private int fill(Node node, int i) {
+        if (i > 0 && node.children[i - 1].n >= t) {
+            borrowFromLeft(node, i);
+        } else if (i < node.n && node.children[i + 1].n >= t) {
+            borrowFromRight(node, i);
+        } else if (i < node.n) {
+            merge(node, i);
+        } else {
+            merge(node, i - 1);
+            i--;
+        }
+        return i;
+    }
+
+    // rotates the last key of child i-1 up into node and node's key i-1 down into child i
+    private static void borrowFromLeft(Node node, int i) {
+        Node c = node.children[i];
+        Node s = node.children[i - 1];
+        System.arraycopy(c.keys, 0, c.keys, 1, c.n);
+        c.keys[0] = node.keys[i - 1];
+        if (!c.isLeaf()) {
+            System.arraycopy(c.children, 0, c.children, 1, c.n + 1);
+            c.children[0] = s.children[s.n];
+            s.children[s.n] = null;
+        }
+        node.keys[i - 1] = s.keys[s.n - 1];
+        s.keys[--s.n] = null;
+        c.n++;
+    }
+
+    // rotates the first key of child i+1 up into node and node's key i down into child i
+    private static void borrowFromRight(Node node, int i) {
+        Node c = node.children[i];
+        Node s = node.children[i + 1];
+        c.keys[c.n] = node.keys[i];
+        node.keys[i] = s.keys[0];
+        System.arraycopy(s.keys, 1, s.keys, 0, s.n - 1);
+        s.keys[s.n - 1] = null;
+        if (!c.isLeaf()) {
+            c.children[c.n + 1] = s.children[0];
+            System.arraycopy(s.children, 1, s.children, 0, s.n);
+            s.children[s.n] = null;
+        }
+        s.n--;
+        c.n++;
+    }
+
+    // merges child i+1 and node's key i into child i, removing both from node
+    private static void merge(Node node, int i) {
+        Node c = node.children[i];
+        Node s = node.children[i + 1];
+        c.keys[c.n] = node.keys[i];
+        System.arraycopy(s.keys, 0, c.keys, c.n + 1, s.n);
+        if (!c.isLeaf()) {
+            System.arraycopy(s.children, 0, c.children, c.n + 1, s.n + 1);
+        }
+        c.n += s.n + 1;
+        System.arraycopy(node.keys, i + 1, node.keys, i, node.n - i - 1);
+        System.arraycopy(node.children, i + 2, node.children, i + 1, node.n - i - 1);
+        node.keys[node.n - 1] = null;
+        node.children[node.n] = null;
+        node.n--;
+    }
+
+    /**
+     * Verify that the tree is a valid B-tree
+     * <p>
+     * Checks that keys are strictly increasing within and across nodes, that every
+     * node but the root holds t-1 to 2t-1 keys, that all leaves are at the same depth,
+     * and that size matches the number of keys.
+     * <p>
+     * @return true if all invariants hold
+     */
+    public boolean verify() {
+        int depth = 0;
+        for (Node node = root; !node.isLeaf(); node = node.children[0]) {
+            depth++;
+        }
+        return verify(root, null, null, depth) == size;
+    }
+
+    // returns the number of keys in the subtree, or -1; keys must lie strictly between lo and hi (null: no bound)
+    private long verify(Node node, T lo, T hi, int depth) {
+        if (node != root && (node.n < t - 1 || node.n > 2 * t - 1)) return -1;
+        if (node.isLeaf() != (depth == 0)) return -1;
+        for (int i = 0; i < node.n; i++) {
+            T k = key(node, i);
+            if ((i > 0 && key(node, i - 1).compareTo(k) >= 0)
+                    || (lo != null && k.compareTo(lo) <= 0) || (hi != null && k.compareTo(hi) >= 0)) {
+                return -1;
+            }
+        }
+        long count = node.n;
+        if (!node.isLeaf()) {
+            for (int i = 0; i <= node.n; i++) {
+                long c = verify(node.children[i], (i == 0) ? lo : key(node, i - 1),
+                        (i == node.n) ? hi : key(node, i), depth - 1);
+                if (c < 0) return -1;
+                count += c;
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,88 @@
+package jxc033200;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads the binary operation format through memory-mapped windows of the file
+ * <p>
+ * The file is mapped WINDOW bytes at a time, so files larger than one mapping (2 GB)
+ * work and little address space is held. A window is moved forward when less than one
+ * full record is left in it, so a record is never split between two windows. Decoding
+ * is a few byte reads per operation out of the page cache, with no copying and no
+ * allocation.
+ * <p>
+ * See BinaryOperationWriter for the format.
+ */
+public class BinaryOperationReader implements OperationReader {
+    static final long WINDOW = 64L << 20;
+
+    private final FileChannel channel;
+    private final long fileSize;
+    private MappedByteBuffer window;
+    private long windowStart;     // file offset of window position 0
+    private long operand;
+
+    public BinaryOperationReader(Path path) throws IOException {
+        channel = FileChannel.open(path, StandardOpenOption.READ);
+        fileSize = channel.size();
+        map(0);
+        byte[] magic = BinaryOperationWriter.MAGIC;
+        for (byte b : magic) {
+            if (!window.hasRemaining() || window.get() != b) {
+                channel.close();
+                throw new IOException(path + " is not a binary operation file");
+            }
+        }
+    }
+
+    private void map(long start) throws IOException {
+        windowStart = start;
+        window = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(WINDOW, fileSize - start));
+    }
+
+    public int next() throws IOException {
+        if (window.remaining() < BinaryOperationWriter.MAX_RECORD_BYTES
+                && windowStart + window.limit() < fileSize) {
+            map(windowStart + window.position());
+        }
+        if (!window.hasRemaining()) {
+            return END;     // missing END marker, treat like the text format does
+        }
+        int op = window.get();
+        if (op == END) {
+            return END;
+        }
+        if (op != ADD && op != REMOVE && op != CONTAINS) {
+            throw new IOException("bad opcode " + op + " at offset " + (windowStart + window.position() - 1));
+        }
+        long v = 0;
+        int shift = 0;
+        while (true) {
+            if (!window.hasRemaining()) {
+                throw new IOException("truncated operand at end of file");
+            }
+            byte b = window.get();
+            v |= (long) (b & 0x7F) << shift;
+            if (b >= 0) break;
+            shift += 7;
+            if (shift > 63) {
+                throw new IOException("operand longer than 10 bytes at offset " + (windowStart + window.position()));
+            }
+        }
+        operand = (v >>> 1) ^ -(v & 1);     // undo zigzag
+        return op;
+    }
+
+    public long operand() {
+        return operand;
+    }
+
+    // the mapping itself is released when the buffer is collected
+    public void close() throws IOException {
+        channel.close();
+    }
+}
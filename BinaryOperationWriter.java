@@ -0,0 +1,64 @@
+package jxc033200;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes operations in the binary operation format
+ * <p>
+ * The file starts with the 4-byte MAGIC. Each operation is then one opcode byte
+ * (OperationReader.ADD, REMOVE or CONTAINS) followed by its operand as a zigzag
+ * varint: the sign is folded into the low bit and the value is written 7 bits per
+ * byte, low bits first, with the high bit set on every byte but the last. Small keys
+ * of either sign take one or two bytes, and no operand takes more than 10. The file
+ * ends with an END opcode byte, written by close().
+ */
+public class BinaryOperationWriter implements Closeable {
+    static final byte[] MAGIC = {'A', 'V', 'L', 1};
+    static final int MAX_RECORD_BYTES = 11;   // opcode + 10-byte varint
+
+    private final OutputStream out;
+    private final byte[] buf = new byte[1 << 16];
+    private int pos;
+
+    public BinaryOperationWriter(OutputStream out) throws IOException {
+        this.out = out;
+        out.write(MAGIC);
+    }
+
+    /**
+     * Appends one operation
+     * <p>
+     * @param op - OperationReader.ADD, REMOVE or CONTAINS
+     * @param operand - the key
+     */
+    public void write(int op, long operand) throws IOException {
+        if (op != OperationReader.ADD && op != OperationReader.REMOVE && op != OperationReader.CONTAINS) {
+            throw new IllegalArgumentException("bad opcode " + op);
+        }
+        if (buf.length - pos < MAX_RECORD_BYTES) {
+            flush();
+        }
+        buf[pos++] = (byte) op;
+        long v = (operand << 1) ^ (operand >> 63);      // zigzag
+        while ((v & ~0x7FL) != 0) {
+            buf[pos++] = (byte) ((v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        buf[pos++] = (byte) v;
+    }
+
+    private void flush() throws IOException {
+        out.write(buf, 0, pos);
+        pos = 0;
+    }
+
+    // writes the END marker and closes the stream
+    public void close() throws IOException {
+        if (pos == buf.length) flush();
+        buf[pos++] = (byte) OperationReader.END;
+        flush();
+        out.close();
+    }
+}
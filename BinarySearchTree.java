@@ -1,11 +1,14 @@
 package jxc033200;
 
-import java.io.File;
-import java.io.FileNotFoundException;
-import java.util.ArrayDeque;
-import java.util.Deque;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
 import java.util.Iterator;
-import java.util.Scanner;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 public class BinarySearchTree<T extends Comparable<? super T>> implements Iterable<T> {
     static class Entry<T> {
@@ -19,16 +22,89 @@ public class BinarySearchTree<T extends Comparable<? super T>> implements Iterab
         }
     }
 
+    /**
+     * Stack of entries on the path from the root, backed by a plain array
+     * <p>
+     * find() pushes every entry it passes, AVLTree pops them to retrace heights. The
+     * array is only replaced when a path longer than any before it shows up (an AVL
+     * tree of 2^31 entries is less than 46 levels deep), so after warm-up push, pop and
+     * clear allocate nothing and, unlike a Deque, do no null checks on the way in.
+     */
+    static final class Path<T> {
+        private Entry<T>[] entries;
+        private int size;
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        Path(int capacity) {
+            entries = (Entry<T>[]) new Entry[capacity];
+        }
+
+        void push(Entry<T> t) {
+            if (size == entries.length) {
+                entries = Arrays.copyOf(entries, 2 * size);
+            }
+            entries[size++] = t;
+        }
+
+        // returns the top entry and removes it, or null if the path is empty
+        Entry<T> pop() {
+            if (size == 0) return null;
+            Entry<T> t = entries[--size];
+            entries[size] = null;
+            return t;
+        }
+
+        // returns the top entry, or null if the path is empty
+        Entry<T> peek() {
+            return (size == 0) ? null : entries[size - 1];
+        }
+
+        // entry i levels below the root, 0 being the root
+        Entry<T> get(int i) {
+            return entries[i];
+        }
+
+        int size() {
+            return size;
+        }
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        // forget the path; stale slots are overwritten by the next find()
+        void clear() {
+            size = 0;
+        }
+    }
+
     Entry<T> root;
     int size;
     // define stack
-    Deque<Entry<T>> s = new ArrayDeque<>(); //stack used to store path to any added node
-                                            //used to update heights and determine balance factor
+    Path<T> s = new Path<>(64);     //stack used to store path to any added node
+                                    //used to update heights and determine balance factor
+    int lastCompare;                //x.compareTo() of the entry returned by the last find(), 0 if found
+    int modCount;                   //bumped by every add/remove that changes the structure, checked by iterators
+    TreeTracer<T> tracer = TreeTracer.none();   //receives root/duplicate/rotation events, no-op by default
+
     public BinarySearchTree() {
         root = null;
         size = 0;
     }
 
+    /**
+     * Installs a tracer for structural events
+     * <p>
+     * The default tracer ignores every event, so the add path does no I/O. Pass a
+     * RingBufferTracer to keep recent events for debugging, or null to go back to the
+     * no-op tracer.
+     * <p>
+     * @param tracer - the tracer to install, or null for none
+     */
+    public void setTracer(TreeTracer<T> tracer) {
+        this.tracer = (tracer == null) ? TreeTracer.none() : tracer;
+    }
+
     /**  Helper method find(), looks for an entry and pushes path to stack
      * <p>
      * This helper method is used in the add(), contains(), and remove() methods
@@ -39,7 +115,9 @@ public class BinarySearchTree<T extends Comparable<? super T>> implements Iterab
      * clears the stack and starts the helper method at the root. 
      * <p>
      * The helper method traverses the tree to find the entry containing the specified
-     * element, or the entry at which the search failed.
+     * element, or the entry at which the search failed. Each level costs a single
+     * compareTo(); its result for the returned entry is left in lastCompare, so callers
+     * know which side x belongs on without comparing again.
      * <p>
      * @param t - the root of the subtree to search
      * @param x - the element to search for
@@ -53,26 +131,30 @@ public class BinarySearchTree<T extends Comparable<? super T>> implements Iterab
     }
     
     public Entry<T> find(Entry<T> t, T x) {     //helper method - find entry containing x, or entry at which find failed 
-        if (t == null || x.equals(t.element)) {     //if t is null, or the element is found, return t
+        if (t == null) {        //if t is null, return t
+            lastCompare = 0;
             return t;
         }
+        int cmp;
         while (true) {
-            if (x.compareTo(t.element) < 0) {   //if x is less than t.element and the left child is null, break and return t
+            cmp = x.compareTo(t.element);   //one comparison per level
+            if (cmp < 0) {      //if x is less than t.element and the left child is null, break and return t
                 if (t.left == null) {
                     break;
                 }                 
                 s.push(t);      //push t onto stack 
                 t = t.left;     //continue to next entry for comparison                                
-            } else if (x.compareTo(t.element) > 0) {    //if x is greater than t.element and the right child is null, break and return t
+            } else if (cmp > 0) {   //if x is greater than t.element and the right child is null, break and return t
                 if (t.right == null) {
                     break;
                 }                 
                 s.push(t);      //push t onto stack
-                t=t.right;      //continue to next entry for comparison
+                t = t.right;    //continue to next entry for comparison
             } else {
                 break;
             }
         }          
+        lastCompare = cmp;
         return t;   //return element found or where last entry accessed if not found
     }
 
@@ -80,17 +162,25 @@ public class BinarySearchTree<T extends Comparable<? super T>> implements Iterab
      * <p>
      * The contains() method checks whether the specified element is in the tree
      * <p>
-     * It uses the helper method find() to search for the element and returns true
-     * if found, false if not found
+     * It walks down like find() but does not record the path, since nothing is
+     * retraced afterwards, and returns true if found, false if not found
      * <p>   
      * @param x - the element to search for
      * @return true if found, false if not found     
     */
     public boolean contains(T x) {
-        Entry<T> found = find(x);   //use find() helper method to search for x
-        if (found == null || !found.element.equals(x))  //if not found, return false
-            return false;
-        return true;    //return true if found
+        Entry<T> t = root;
+        while (t != null) {
+            int cmp = x.compareTo(t.element);
+            if (cmp < 0) {
+                t = t.left;
+            } else if (cmp > 0) {
+                t = t.right;
+            } else {
+                return true;    //return true if found
+            }
+        }
+        return false;   //if not found, return false
     }
 
 
@@ -126,31 +216,49 @@ public class BinarySearchTree<T extends Comparable<? super T>> implements Iterab
     */
     public boolean add(T x) {
         if (size == 0) {
-            root = createEntry(x);      //create root using helper
-            System.out.println("Creating root");
-            size++;     //adjust size of tree
+            attach(null, x);        //create root using helper
             return true;
+        }
+        Entry<T> t = find(x);
+        if (lastCompare == 0) {     //if x is found using find(), replace 
+            tracer.duplicateReplaced(x);
+            t.element = x;
+            return false;
+        }
+        attach(t, x);
+        return true;
+    }
+
+    /**
+     * Helper method attach() links a new entry for x where a failed find() ended
+     * <p>
+     * The new entry becomes t's left child if lastCompare < 0, its right child
+     * otherwise, and t is pushed on the stack, so s holds the whole path from the root
+     * to the new entry's parent (needed to adjust heights in AVLTree). If t is null
+     * the tree is empty and the new entry becomes the root.
+     * <p>
+     * @param t - the entry returned by find(x), or null if the tree is empty
+     * @param x - the element to add
+     * @return the new entry
+     */
+    Entry<T> attach(Entry<T> t, T x) {
+        Entry<T> e = createEntry(x);
+        if (t == null) {
+            s.clear();
+            root = e;
+            tracer.rootCreated(x);
         } else {
-            Entry<T> t = find(x);
-            if (t.element.equals(x)) {      //if x is found using find(), replace 
-                System.out.println("Duplicate, replacing " + x);  
-                t.element = x;
-                return false;
-            }
-            if (x.compareTo(t.element) < 0) {       //if x is less than the element, create left child
-                s.push(t);      //push entry to stack 
-                System.out.println("Creating left entry " + x);                
-                t.left = createEntry(x);
+            s.push(t);
+            if (lastCompare < 0) {      //if x is less than the element, create left child
+                t.left = e;
+            } else {        //if x is greater than the element, create right child
+                t.right = e;
             }
-            else {      //if x is greater than the element, create right child and push entry to stack               
-                s.push(t);                   
-                t.right = createEntry(x); 
-                System.out.println("Creating right entry " + x);
-            }
-            size++;
-            return true;            
         }
-    }    
+        size++;     //adjust size of tree
+        modCount++;
+        return e;
+    }
 
     /** 
      * Remove x from tree. 
@@ -171,18 +279,37 @@ public class BinarySearchTree<T extends Comparable<? super T>> implements Iterab
         if (size == 0)      //if no tree
             return null;
         Entry<T> t = find(x);       //t is found element
-        if (!t.element.equals(x))       //if x isn't found, return null
+        if (lastCompare != 0)       //if x isn't found, return null
             return null;
+        unlink(t);
+        return x;
+    }
+
+    /**
+     * Helper method unlink() removes an entry that find() returned
+     * <p>
+     * s must hold t's ancestors, as find() leaves them. Afterwards it holds the path
+     * from the root to the parent of the entry that was actually spliced out (t itself,
+     * or the minimum of t's right subtree if t had two children).
+     * <p>
+     * @param t - the entry to remove
+     */
+    void unlink(Entry<T> t) {
         if (t.left == null || t.right == null) {    //if t has 0 or 1 child
             splice(t);
         } else {        //if t has 2 children
             s.push(t);      //push t onto stack
-            Entry<T> minRight = find(t.right, x);       //replace t.element with minRight.element
-            t.element = minRight.element;
+            Entry<T> minRight = find(t.right, t.element);       //replace t.element with minRight.element
+            moveContents(minRight, t);
             splice(minRight);       //remove minRight
         }
         size--;
-        return x;
+        modCount++;
+    }
+
+    // copies what an entry holds into another one; AVLTreeMap also copies the value
+    void moveContents(Entry<T> from, Entry<T> to) {
+        to.element = from.element;
     }
 
     /** helper method splice reassigns children according to which entry is removed
@@ -211,81 +338,251 @@ public class BinarySearchTree<T extends Comparable<? super T>> implements Iterab
 
 
     /** Iterate elements in sorted order of keys
-     Solve this problem without creating an array using in-order traversal (toArray()).
+     * <p>
+     * The iterator keeps its own stack of the entries whose left subtree it is
+     * visiting (never the shared s stack), so it needs O(height) space, allocated
+     * once, and next() is O(1) amortized.
+     * <p>
+     * It is fail-fast: if the tree is structurally modified other than through the
+     * iterator's own remove(), the next call throws ConcurrentModificationException.
+     * <p>
+     * @return an iterator over the elements in ascending order
      */
     public Iterator<T> iterator() {
-        return null;
+        return new TreeIterator();
+    }
+
+    /**
+     * Spliterator over the elements in ascending order
+     * <p>
+     * A plain BinarySearchTree has no subtree sizes, so this one wraps iterator() and
+     * splits by copying batches out of it. AVLTree overrides it with one that splits
+     * the tree itself.
+     * <p>
+     * @return an ORDERED, SORTED, DISTINCT, NONNULL and SIZED spliterator
+     */
+    @Override
+    public Spliterator<T> spliterator() {
+        return Spliterators.spliterator(iterator(), size,
+                Spliterator.ORDERED | Spliterator.SORTED | Spliterator.DISTINCT | Spliterator.NONNULL);
+    }
+
+    // sequential stream of the elements in ascending order
+    public Stream<T> stream() {
+        return StreamSupport.stream(spliterator(), false);
+    }
+
+    // parallel stream of the elements; the tree must not be modified while it runs
+    public Stream<T> parallelStream() {
+        return StreamSupport.stream(spliterator(), true);
+    }
+
+    private final class TreeIterator implements Iterator<T> {
+        private final Path<T> stack = new Path<>(64);
+        private Entry<T> lastReturned;
+        private int expectedModCount = modCount;
+
+        TreeIterator() {
+            pushLeft(root);
+        }
+
+        // push t and its chain of left children, the smallest of them ends on top
+        private void pushLeft(Entry<T> t) {
+            while (t != null) {
+                stack.push(t);
+                t = t.left;
+            }
+        }
+
+        public boolean hasNext() {
+            return !stack.isEmpty();
+        }
+
+        public T next() {
+            if (modCount != expectedModCount) {
+                throw new ConcurrentModificationException();
+            }
+            Entry<T> t = stack.pop();
+            if (t == null) {
+                throw new NoSuchElementException();
+            }
+            pushLeft(t.right);
+            lastReturned = t;
+            return t.element;
+        }
+
+        /**
+         * Removes the last element returned by next()
+         * <p>
+         * Removing may splice or rotate entries that are on the stack, so the stack is
+         * rebuilt afterwards: it becomes the path to the elements greater than the one
+         * removed, found with one O(log n) descent.
+         */
+        public void remove() {
+            if (lastReturned == null) {
+                throw new IllegalStateException();
+            }
+            if (modCount != expectedModCount) {
+                throw new ConcurrentModificationException();
+            }
+            T x = lastReturned.element;
+            BinarySearchTree.this.remove(x);
+            lastReturned = null;
+            expectedModCount = modCount;
+            stack.clear();
+            Entry<T> t = root;
+            while (t != null) {     // keep every entry greater than x whose left subtree is still to come
+                if (x.compareTo(t.element) < 0) {
+                    stack.push(t);
+                    t = t.left;
+                } else {
+                    t = t.right;
+                }
+            }
+        }
     }
     
+    // Smallest element in the tree, or null if it is empty
     public T min() {
-        return null;
+        Entry<T> t = root;
+        if (t == null) return null;
+        while (t.left != null) {
+            t = t.left;
+        }
+        return t.element;
     }
 
+    // Largest element in the tree, or null if it is empty
     public T max() {
-        return null;
+        Entry<T> t = root;
+        if (t == null) return null;
+        while (t.right != null) {
+            t = t.right;
+        }
+        return t.element;
     }
 
+    /*
+     * The ordered queries below walk down from the root once, remembering the best
+     * candidate seen so far. They do not use find(), so they leave the s stack alone
+     * and cost O(height) with one compareTo() per level.
+     */
+
     // Find largest key that is no bigger than x.  Return null if there is no such key.
     public T floor(T x) {
-        return null;
+        T best = null;
+        Entry<T> t = root;
+        while (t != null) {
+            int cmp = x.compareTo(t.element);
+            if (cmp < 0) {
+                t = t.left;
+            } else if (cmp > 0) {
+                best = t.element;
+                t = t.right;
+            } else {
+                return t.element;
+            }
+        }
+        return best;
     }
 
     // Find smallest key that is no smaller than x.  Return null if there is no such key.
     public T ceiling(T x) {
-        return null;
+        T best = null;
+        Entry<T> t = root;
+        while (t != null) {
+            int cmp = x.compareTo(t.element);
+            if (cmp > 0) {
+                t = t.right;
+            } else if (cmp < 0) {
+                best = t.element;
+                t = t.left;
+            } else {
+                return t.element;
+            }
+        }
+        return best;
     }
 
     // Find predecessor of x.  If x is not in the tree, return floor(x).  Return null if there is no such key.
+    // Either way that is the largest key strictly smaller than x.
     public T predecessor(T x) {
-        return null;
+        T best = null;
+        Entry<T> t = root;
+        while (t != null) {
+            if (x.compareTo(t.element) > 0) {
+                best = t.element;
+                t = t.right;
+            } else {
+                t = t.left;
+            }
+        }
+        return best;
     }
 
     // Find successor of x.  If x is not in the tree, return ceiling(x).  Return null if there is no such key.
+    // Either way that is the smallest key strictly greater than x.
     public T successor(T x) {
-        return null;
+        T best = null;
+        Entry<T> t = root;
+        while (t != null) {
+            if (x.compareTo(t.element) < 0) {
+                best = t.element;
+                t = t.left;
+            } else {
+                t = t.right;
+            }
+        }
+        return best;
     }
 
    // Create an array with the elements using in-order traversal of tree
+   // Iterative, with an explicit stack, so a degenerate BST cannot overflow the call stack
     public Comparable[] toArray() {
         Comparable[] arr = new Comparable[size];
-        /* write code to place elements in array here */
+        Path<T> stack = new Path<>(64);
+        Entry<T> t = root;
+        int i = 0;
+        while (t != null || !stack.isEmpty()) {
+            while (t != null) {
+                stack.push(t);
+                t = t.left;
+            }
+            t = stack.pop();
+            arr[i++] = t.element;
+            t = t.right;
+        }
         return arr;
     }
 
-    public static void main(String[] args) throws FileNotFoundException {
+    public static void main(String[] args) throws IOException {
         BinarySearchTree<Long> bst = new BinarySearchTree<>();
-        Scanner sc;
-        if (args.length > 0) {
-            File file = new File(args[0]);
-            sc = new Scanner(file);
-        } else {
-            sc = new Scanner(System.in);
-        }        
-        String operation = "";
+        OperationReader in = OperationReader.open(args);    // args[0] in text or binary format, or stdin
+        int operation;
         long operand = 0;
         int modValue = 999983;
         long result = 0;
         // Initialize the timer
         Timer timer = new Timer();
         
-        while (!((operation = sc.next()).equals("End"))) {            
+        while ((operation = in.next()) != OperationReader.END) {            
             switch (operation) {
-                case "Add": {
-                    operand = sc.nextInt();
+                case OperationReader.ADD: {
+                    operand = in.operand();
                     if (bst.add(operand)) {
                         result = (result + 1) % modValue;
                     }
                     break;
                 }
-                case "Remove": {
-                    operand = sc.nextInt();
+                case OperationReader.REMOVE: {
+                    operand = in.operand();
                     if (bst.remove(operand) != null) {
                         result = (result + 1) % modValue;
                     }
                     break;
                 }
-                case "Contains": {
-                    operand = sc.nextInt();
+                case OperationReader.CONTAINS: {
+                    operand = in.operand();
                     if (bst.contains(operand)) {
                         result = (result + 1) % modValue;
                     }
@@ -296,6 +593,7 @@ public class BinarySearchTree<T extends Comparable<? super T>> implements Iterab
         
         // End Time
         timer.end();
+        in.close();
         
         System.out.println(result);
         System.out.println(timer);        
@@ -0,0 +1,706 @@
+package jxc033200;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Thread-safe AVL map with optimistic, lock-free reads and per-node locking for writers
+ * <p>
+ * This follows Bronson, Casper, Chafi and Olukotun, "A Practical Concurrent Binary
+ * Search Tree" (PPoPP 2010). Unlike BinarySearchTree there is no shared traversal
+ * state: every operation walks the tree with its own locals.
+ * <p>
+ * Readers take no locks. Each node carries a version number. A reader records it
+ * before following a child link and re-checks it afterwards. A rotation marks the
+ * node that loses part of its subtree as "shrinking" and bumps its version when done,
+ * so a reader that raced with it notices and retries from the parent.
+ * <p>
+ * Writers lock only the nodes they change: the parent for an insert, the parent and
+ * node for an unlink, and parent, node and child(ren) for a rotation, always top-down.
+ * Removing a key with two children just clears its value, which leaves a routing
+ * node. Routing nodes are unlinked later, once they have at most one child. Heights
+ * are repaired after each change by walking up parent links. Balance is relaxed while
+ * writers race, and once the tree is quiescent it is a strict AVL tree again (see
+ * verify()).
+ * <p>
+ * Heights here count a leaf as 1 and null as 0, as in the paper.
+ * <p>
+ * @param <K> - key type
+ * @param <V> - value type, null values are not allowed
+ */
+public class ConcurrentAVLTreeMap<K extends Comparable<? super K>, V> {
+    static final long UNLINKED = 0x1L;
+    static final long SHRINKING = 0x2L;
+    static final long SHRINK_COUNT_INCR = 0x4L;
+
+    static final int SPIN_COUNT = 100;
+    static final int YIELD_COUNT = 10;
+
+    // nodeCondition() results, all heights are >= 0
+    static final int UNLINK_REQUIRED = -1;
+    static final int REBALANCE_REQUIRED = -2;
+    static final int NOTHING_REQUIRED = -3;
+
+    // update modes
+    static final int UPDATE_ALWAYS = 0;
+    static final int UPDATE_IF_ABSENT = 1;
+
+    static final Object SPECIAL_RETRY = new Object();
+
+    static final class Node<K, V> {
+        final K key;
+        volatile int height;
+        volatile long version;
+        volatile Object value;      // null for a routing node whose key was removed
+        volatile Node<K, V> parent, left, right;
+
+        Node(K key, int height, Object value, Node<K, V> parent, long version, Node<K, V> left, Node<K, V> right) {
+            this.key = key;
+            this.height = height;
+            this.value = value;
+            this.parent = parent;
+            this.version = version;
+            this.left = left;
+            this.right = right;
+        }
+
+        Node<K, V> child(int dir) {
+            return (dir < 0) ? left : right;
+        }
+
+        void setChild(int dir, Node<K, V> node) {
+            if (dir < 0) {
+                left = node;
+            } else {
+                right = node;
+            }
+        }
+
+        /**
+         * Waits for the rotation that is shrinking this node to finish
+         * <p>
+         * Spins, then yields, then blocks on the node's monitor, which the rotating
+         * writer holds until the shrink is over.
+         * <p>
+         * @param ovl - the version that was seen as shrinking
+         */
+        void waitUntilShrinkCompleted(long ovl) {
+            if (!isShrinking(ovl)) return;
+            for (int tries = 0; tries < SPIN_COUNT; tries++) {
+                if (version != ovl) return;
+            }
+            for (int tries = 0; tries < YIELD_COUNT; tries++) {
+                Thread.yield();
+                if (version != ovl) return;
+            }
+            synchronized (this) {
+                // the shrinking writer held the lock, so the version has moved on
+            }
+        }
+    }
+
+    // sentinel whose right child is the real root, so the root has a parent to lock
+    private final Node<K, V> rootHolder = new Node<>(null, 1, null, null, 0L, null, null);
+    private final LongAdder size = new LongAdder();
+
+    public ConcurrentAVLTreeMap() {
+    }
+
+    static boolean isShrinking(long ovl) {
+        return (ovl & SHRINKING) != 0;
+    }
+
+    static boolean isUnlinked(long ovl) {
+        return (ovl & UNLINKED) != 0;
+    }
+
+    static boolean isShrinkingOrUnlinked(long ovl) {
+        return (ovl & (SHRINKING | UNLINKED)) != 0;
+    }
+
+    static long beginShrink(long ovl) {
+        return ovl | SHRINKING;
+    }
+
+    static long endShrink(long ovl) {
+        return ovl + SHRINK_COUNT_INCR;     // ovl is the pre-shrink version, with SHRINKING clear
+    }
+
+    static int height(Node<?, ?> node) {
+        return (node == null) ? 0 : node.height;
+    }
+
+    // number of keys; exact when no writer is running, otherwise a recent value
+    public int size() {
+        return size.intValue();
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    public boolean containsKey(K key) {
+        return get(key) != null;
+    }
+
+    /**
+     * Returns the value mapped to key, without taking any lock
+     * <p>
+     * @param key - the key to look up
+     * @return the value, or null if key is absent
+     */
+    @SuppressWarnings("unchecked")
+    public V get(K key) {
+        return (V) getImpl(key);
+    }
+
+    /**
+     * Maps key to value
+     * <p>
+     * @return the previous value, or null if key was absent
+     */
+    public V put(K key, V value) {
+        return update(key, UPDATE_ALWAYS, requireValue(value));
+    }
+
+    /**
+     * Maps key to value unless key is already present
+     * <p>
+     * @return the existing value, or null if value was inserted
+     */
+    public V putIfAbsent(K key, V value) {
+        return update(key, UPDATE_IF_ABSENT, requireValue(value));
+    }
+
+    /**
+     * Removes the mapping for key
+     * <p>
+     * @return the removed value, or null if key was absent
+     */
+    public V remove(K key) {
+        return update(key, UPDATE_ALWAYS, null);
+    }
+
+    private static Object requireValue(Object value) {
+        if (value == null) throw new NullPointerException("null values are not supported");
+        return value;
+    }
+
+    //////////////// reads
+
+    private Object getImpl(K key) {
+        while (true) {
+            Node<K, V> right = rootHolder.right;
+            if (right == null) return null;
+            int rightCmp = key.compareTo(right.key);
+            if (rightCmp == 0) return right.value;
+            long ovl = right.version;
+            if (isShrinkingOrUnlinked(ovl)) {
+                right.waitUntilShrinkCompleted(ovl);
+            } else if (right == rootHolder.right) {
+                Object vo = attemptGet(key, right, rightCmp, ovl);
+                if (vo != SPECIAL_RETRY) return vo;
+            }
+        }
+    }
+
+    /**
+     * Searches the subtree of node for key, node having been validated at nodeOVL
+     * <p>
+     * @return the value (possibly null) or SPECIAL_RETRY if node changed underneath us
+     */
+    private Object attemptGet(K key, Node<K, V> node, int dirToC, long nodeOVL) {
+        while (true) {
+            Node<K, V> child = node.child(dirToC);
+            if (child == null) {
+                if (node.version != nodeOVL) return SPECIAL_RETRY;
+                return null;
+            }
+            int childCmp = key.compareTo(child.key);
+            if (childCmp == 0) return child.value;
+            long childOVL = child.version;
+            if (isShrinkingOrUnlinked(childOVL)) {
+                child.waitUntilShrinkCompleted(childOVL);
+                if (node.version != nodeOVL) return SPECIAL_RETRY;
+            } else if (child != node.child(dirToC)) {
+                if (node.version != nodeOVL) return SPECIAL_RETRY;
+            } else {
+                if (node.version != nodeOVL) return SPECIAL_RETRY;
+                Object vo = attemptGet(key, child, childCmp, childOVL);
+                if (vo != SPECIAL_RETRY) return vo;
+            }
+        }
+    }
+
+    //////////////// updates
+
+    @SuppressWarnings("unchecked")
+    private V update(K key, int func, Object newValue) {
+        if (key == null) throw new NullPointerException();
+        Object prev = updateImpl(key, func, newValue);
+        if (newValue != null && prev == null) {
+            size.increment();
+        } else if (newValue == null && prev != null) {
+            size.decrement();
+        }
+        return (V) prev;
+    }
+
+    private Object updateImpl(K key, int func, Object newValue) {
+        while (true) {
+            Node<K, V> right = rootHolder.right;
+            if (right == null) {
+                if (newValue == null || attemptInsertIntoEmpty(key, newValue)) return null;
+            } else {
+                long ovl = right.version;
+                if (isShrinkingOrUnlinked(ovl)) {
+                    right.waitUntilShrinkCompleted(ovl);
+                } else if (right == rootHolder.right) {
+                    Object vo = attemptUpdate(key, func, newValue, rootHolder, right, ovl);
+                    if (vo != SPECIAL_RETRY) return vo;
+                }
+            }
+        }
+    }
+
+    private boolean attemptInsertIntoEmpty(K key, Object value) {
+        synchronized (rootHolder) {
+            if (rootHolder.right != null) return false;
+            rootHolder.right = new Node<>(key, 1, value, rootHolder, 0L, null, null);
+            rootHolder.height = 2;
+            return true;
+        }
+    }
+
+    /**
+     * Applies the update inside the subtree of node, node having been validated at nodeOVL
+     * <p>
+     * @return the previous value (possibly null) or SPECIAL_RETRY
+     */
+    private Object attemptUpdate(K key, int func, Object newValue, Node<K, V> parent, Node<K, V> node, long nodeOVL) {
+        int cmp = key.compareTo(node.key);
+        if (cmp == 0) return attemptNodeUpdate(func, newValue, parent, node);
+        while (true) {
+            Node<K, V> child = node.child(cmp);
+            if (node.version != nodeOVL) return SPECIAL_RETRY;
+            if (child == null) {
+                if (newValue == null) return null;     // removing an absent key
+                boolean inserted = false;
+                Node<K, V> damaged = null;
+                synchronized (node) {
+                    if (node.version != nodeOVL) return SPECIAL_RETRY;
+                    if (node.child(cmp) == null) {      // else we lost a race with another insert, retry
+                        node.setChild(cmp, new Node<>(key, 1, newValue, node, 0L, null, null));
+                        inserted = true;
+                        damaged = fixHeight_nl(node);
+                    }
+                }
+                if (inserted) {
+                    fixHeightAndRebalance(damaged);
+                    return null;
+                }
+            } else {
+                long childOVL = child.version;
+                if (isShrinkingOrUnlinked(childOVL)) {
+                    child.waitUntilShrinkCompleted(childOVL);
+                } else if (child == node.child(cmp)) {
+                    if (node.version != nodeOVL) return SPECIAL_RETRY;
+                    Object vo = attemptUpdate(key, func, newValue, node, child, childOVL);
+                    if (vo != SPECIAL_RETRY) return vo;
+                }
+            }
+        }
+    }
+
+    /**
+     * Applies the update to node, whose key matched
+     * <p>
+     * A removal of a node with at most one child unlinks it, which needs the parent's
+     * lock as well. Every other update only swaps the value under the node's lock; in
+     * particular removing a node with two children leaves it as a routing node.
+     * <p>
+     * @return the previous value (possibly null) or SPECIAL_RETRY
+     */
+    private Object attemptNodeUpdate(int func, Object newValue, Node<K, V> parent, Node<K, V> node) {
+        if (newValue == null && node.value == null) return null;   // already removed
+        if (newValue == null && (node.left == null || node.right == null)) {
+            Object prev;
+            Node<K, V> damaged;
+            synchronized (parent) {
+                if (isUnlinked(parent.version) || node.parent != parent) return SPECIAL_RETRY;
+                synchronized (node) {
+                    prev = node.value;
+                    if (prev == null) return null;
+                    if (!attemptUnlink_nl(parent, node)) return SPECIAL_RETRY;
+                }
+                damaged = fixHeight_nl(parent);
+            }
+            fixHeightAndRebalance(damaged);
+            return prev;
+        }
+        synchronized (node) {
+            if (isUnlinked(node.version)) return SPECIAL_RETRY;
+            Object prev = node.value;
+            if (func == UPDATE_IF_ABSENT && prev != null) return prev;
+            if (newValue == null) {
+                if (prev == null) return null;
+                if (node.left == null || node.right == null) return SPECIAL_RETRY;  // became unlinkable, take the other path
+            }
+            node.value = newValue;
+            return prev;
+        }
+    }
+
+    /**
+     * Splices node (at most one child) out from under parent; both must be locked
+     * <p>
+     * @return false if node is no longer a child of parent or has two children
+     */
+    private boolean attemptUnlink_nl(Node<K, V> parent, Node<K, V> node) {
+        Node<K, V> parentL = parent.left;
+        Node<K, V> parentR = parent.right;
+        if (parentL != node && parentR != node) return false;
+        Node<K, V> left = node.left;
+        Node<K, V> right = node.right;
+        if (left != null && right != null) return false;
+        Node<K, V> splice = (left != null) ? left : right;
+        if (parentL == node) {
+            parent.left = splice;
+        } else {
+            parent.right = splice;
+        }
+        if (splice != null) splice.parent = parent;
+        node.version = UNLINKED;
+        node.value = null;
+        return true;
+    }
+
+    //////////////// height repair and rebalancing
+
+    private int nodeCondition(Node<K, V> node) {
+        Node<K, V> nL = node.left;
+        Node<K, V> nR = node.right;
+        if ((nL == null || nR == null) && node.value == null) return UNLINK_REQUIRED;
+        int hN = node.height;
+        int hL0 = height(nL);
+        int hR0 = height(nR);
+        int hNRepl = 1 + Math.max(hL0, hR0);
+        int bal = hL0 - hR0;
+        if (bal < -1 || bal > 1) return REBALANCE_REQUIRED;
+        return (hN != hNRepl) ? hNRepl : NOTHING_REQUIRED;
+    }
+
+    /**
+     * Fixes node's height if that is all it needs; node must be locked
+     * <p>
+     * @return the next node that needs attention, or null
+     */
+    private Node<K, V> fixHeight_nl(Node<K, V> node) {
+        int c = nodeCondition(node);
+        switch (c) {
+            case REBALANCE_REQUIRED:
+            case UNLINK_REQUIRED:
+                return node;
+            case NOTHING_REQUIRED:
+                return null;
+            default:
+                node.height = c;
+                return node.parent;
+        }
+    }
+
+    /**
+     * Walks up from node repairing heights, unlinking routing nodes and rotating
+     * <p>
+     * A rotation can leave the nodes it moved out of balance (their children may
+     * themselves be mid-repair), so it pushes them on the damaged stack and they are
+     * looked at again, lowest first, once the walk above them is done. Every node
+     * whose links or height changed is therefore re-examined after its locks are
+     * released, which is what brings the tree back to strict AVL balance.
+     * <p>
+     * @param node - the first node that may need attention, or null
+     */
+    private void fixHeightAndRebalance(Node<K, V> node) {
+        ArrayDeque<Node<K, V>> damaged = null;     // allocated on the first rotation
+        while (true) {
+            int condition = (node == null || node.parent == null || isUnlinked(node.version))
+                    ? NOTHING_REQUIRED : nodeCondition(node);
+            if (condition == NOTHING_REQUIRED) {
+                if (damaged == null || damaged.isEmpty()) return;
+                node = damaged.pop();
+            } else if (condition != UNLINK_REQUIRED && condition != REBALANCE_REQUIRED) {
+                synchronized (node) {
+                    node = fixHeight_nl(node);
+                }
+            } else {
+                Node<K, V> nParent = node.parent;
+                synchronized (nParent) {
+                    if (!isUnlinked(nParent.version) && node.parent == nParent) {
+                        if (damaged == null) damaged = new ArrayDeque<>();
+                        synchronized (node) {
+                            node = rebalance_nl(nParent, node, damaged);
+                        }
+                    }
+                    // else the parent changed under us, retry with the same node
+                }
+            }
+        }
+    }
+
+    // nParent and n must be locked; returns the next node that needs attention, or null
+    private Node<K, V> rebalance_nl(Node<K, V> nParent, Node<K, V> n, ArrayDeque<Node<K, V>> damaged) {
+        Node<K, V> nL = n.left;
+        Node<K, V> nR = n.right;
+        if ((nL == null || nR == null) && n.value == null) {
+            if (attemptUnlink_nl(nParent, n)) {
+                return fixHeight_nl(nParent);
+            }
+            return n;
+        }
+        int hN = n.height;
+        int hL0 = height(nL);
+        int hR0 = height(nR);
+        int hNRepl = 1 + Math.max(hL0, hR0);
+        int bal = hL0 - hR0;
+        if (bal > 1) {
+            return rebalanceToRight_nl(nParent, n, nL, hR0, damaged);
+        } else if (bal < -1) {
+            return rebalanceToLeft_nl(nParent, n, nR, hL0, damaged);
+        } else if (hNRepl != hN) {
+            n.height = hNRepl;
+            return fixHeight_nl(nParent);
+        }
+        return null;
+    }
+
+    /**
+     * n is left-heavy: rotate right, or left-right if nL leans right
+     * <p>
+     * If nL is itself out of balance it is fixed first with a rotation one level down,
+     * and n, still damaged, is returned to be looked at again.
+     */
+    private Node<K, V> rebalanceToRight_nl(Node<K, V> nParent, Node<K, V> n, Node<K, V> nL, int hR0, ArrayDeque<Node<K, V>> damaged) {
+        synchronized (nL) {
+            int hL = nL.height;
+            if (hL - hR0 <= 1) return n;    // the imbalance went away, retry
+            Node<K, V> nLR = nL.right;
+            int hLL0 = height(nL.left);
+            int hLR0 = height(nLR);
+            if (hLL0 >= hLR0) {
+                return rotateRight_nl(nParent, n, nL, nLR, damaged);
+            }
+            if (hLR0 - hLL0 > 1) {
+                damaged.push(n);
+                return rebalanceToLeft_nl(n, nL, nLR, hLL0, damaged);
+            }
+            synchronized (nLR) {
+                if (hLL0 >= nLR.height) {
+                    return rotateRight_nl(nParent, n, nL, nLR, damaged);
+                }
+                return rotateRightOverLeft_nl(nParent, n, nL, nLR, damaged);
+            }
+        }
+    }
+
+    // mirror image of rebalanceToRight_nl
+    private Node<K, V> rebalanceToLeft_nl(Node<K, V> nParent, Node<K, V> n, Node<K, V> nR, int hL0, ArrayDeque<Node<K, V>> damaged) {
+        synchronized (nR) {
+            int hR = nR.height;
+            if (hL0 - hR >= -1) return n;
+            Node<K, V> nRL = nR.left;
+            int hRL0 = height(nRL);
+            int hRR0 = height(nR.right);
+            if (hRR0 >= hRL0) {
+                return rotateLeft_nl(nParent, n, nR, nRL, damaged);
+            }
+            if (hRL0 - hRR0 > 1) {
+                damaged.push(n);
+                return rebalanceToRight_nl(n, nR, nRL, hRR0, damaged);
+            }
+            synchronized (nRL) {
+                if (hRR0 >= nRL.height) {
+                    return rotateLeft_nl(nParent, n, nR, nRL, damaged);
+                }
+                return rotateLeftOverRight_nl(nParent, n, nR, nRL, damaged);
+            }
+        }
+    }
+
+    /*
+     * The rotations below read the child heights only after the links are rewritten.
+     * A thread fixing the height of a moved subtree writes the height and then reads
+     * the parent link; a rotation writes the link and then reads the height, so one
+     * of the two sees the other's write and the new parent cannot keep a stale height.
+     * The rotated nodes go on the damaged stack, and the return value continues the
+     * walk at nParent.
+     */
+
+    private Node<K, V> rotateRight_nl(Node<K, V> nParent, Node<K, V> n, Node<K, V> nL, Node<K, V> nLR, ArrayDeque<Node<K, V>> damaged) {
+        long nodeOVL = n.version;
+        Node<K, V> nPL = nParent.left;
+        n.version = beginShrink(nodeOVL);
+
+        n.left = nLR;
+        if (nLR != null) nLR.parent = n;
+        nL.right = n;
+        n.parent = nL;
+        if (nPL == n) {
+            nParent.left = nL;
+        } else {
+            nParent.right = nL;
+        }
+        nL.parent = nParent;
+
+        int hNRepl = 1 + Math.max(height(nLR), height(n.right));
+        n.height = hNRepl;
+        nL.height = 1 + Math.max(height(nL.left), hNRepl);
+        n.version = endShrink(nodeOVL);
+
+        damaged.push(nL);
+        damaged.push(n);
+        return fixHeight_nl(nParent);
+    }
+
+    private Node<K, V> rotateLeft_nl(Node<K, V> nParent, Node<K, V> n, Node<K, V> nR, Node<K, V> nRL, ArrayDeque<Node<K, V>> damaged) {
+        long nodeOVL = n.version;
+        Node<K, V> nPL = nParent.left;
+        n.version = beginShrink(nodeOVL);
+
+        n.right = nRL;
+        if (nRL != null) nRL.parent = n;
+        nR.left = n;
+        n.parent = nR;
+        if (nPL == n) {
+            nParent.left = nR;
+        } else {
+            nParent.right = nR;
+        }
+        nR.parent = nParent;
+
+        int hNRepl = 1 + Math.max(height(n.left), height(nRL));
+        n.height = hNRepl;
+        nR.height = 1 + Math.max(hNRepl, height(nR.right));
+        n.version = endShrink(nodeOVL);
+
+        damaged.push(nR);
+        damaged.push(n);
+        return fixHeight_nl(nParent);
+    }
+
+    private Node<K, V> rotateRightOverLeft_nl(Node<K, V> nParent, Node<K, V> n, Node<K, V> nL, Node<K, V> nLR, ArrayDeque<Node<K, V>> damaged) {
+        long nodeOVL = n.version;
+        long leftOVL = nL.version;
+        Node<K, V> nPL = nParent.left;
+        Node<K, V> nLRL = nLR.left;
+        Node<K, V> nLRR = nLR.right;
+
+        n.version = beginShrink(nodeOVL);
+        nL.version = beginShrink(leftOVL);
+
+        n.left = nLRR;
+        if (nLRR != null) nLRR.parent = n;
+        nL.right = nLRL;
+        if (nLRL != null) nLRL.parent = nL;
+        nLR.left = nL;
+        nL.parent = nLR;
+        nLR.right = n;
+        n.parent = nLR;
+        if (nPL == n) {
+            nParent.left = nLR;
+        } else {
+            nParent.right = nLR;
+        }
+        nLR.parent = nParent;
+
+        int hNRepl = 1 + Math.max(height(nLRR), height(n.right));
+        n.height = hNRepl;
+        int hLRepl = 1 + Math.max(height(nL.left), height(nLRL));
+        nL.height = hLRepl;
+        nLR.height = 1 + Math.max(hLRepl, hNRepl);
+
+        n.version = endShrink(nodeOVL);
+        nL.version = endShrink(leftOVL);
+
+        damaged.push(nLR);
+        damaged.push(nL);
+        damaged.push(n);
+        return fixHeight_nl(nParent);
+    }
+
+    private Node<K, V> rotateLeftOverRight_nl(Node<K, V> nParent, Node<K, V> n, Node<K, V> nR, Node<K, V> nRL, ArrayDeque<Node<K, V>> damaged) {
+        long nodeOVL = n.version;
+        long rightOVL = nR.version;
+        Node<K, V> nPL = nParent.left;
+        Node<K, V> nRLL = nRL.left;
+        Node<K, V> nRLR = nRL.right;
+
+        n.version = beginShrink(nodeOVL);
+        nR.version = beginShrink(rightOVL);
+
+        n.right = nRLL;
+        if (nRLL != null) nRLL.parent = n;
+        nR.left = nRLR;
+        if (nRLR != null) nRLR.parent = nR;
+        nRL.right = nR;
+        nR.parent = nRL;
+        nRL.left = n;
+        n.parent = nRL;
+        if (nPL == n) {
+            nParent.left = nRL;
+        } else {
+            nParent.right = nRL;
+        }
+        nRL.parent = nParent;
+
+        int hNRepl = 1 + Math.max(height(n.left), height(nRLL));
+        n.height = hNRepl;
+        int hRRepl = 1 + Math.max(height(nRLR), height(nR.right));
+        nR.height = hRRepl;
+        nRL.height = 1 + Math.max(hNRepl, hRRepl);
+
+        n.version = endShrink(nodeOVL);
+        nR.version = endShrink(rightOVL);
+
+        damaged.push(nRL);
+        damaged.push(nR);
+        damaged.push(n);
+        return fixHeight_nl(nParent);
+    }
+
+    //////////////// verification
+
+    /**
+     * Verify that the tree is a valid AVL tree; only meaningful while no writer is running
+     * <p>
+     * Checks key order, parent links, stored heights, the AVL balance condition, that
+     * every remaining routing node still has two children, and that size() matches the
+     * number of keys. Balance is only relaxed while writers race, so once they are done
+     * all of this must hold.
+     * <p>
+     * @return true if all invariants hold
+     */
+    public boolean verify() {
+        long[] count = new long[1];
+        Node<K, V> root = rootHolder.right;
+        if (root != null && root.parent != rootHolder) return false;
+        return verify(root, null, null, count) >= 0 && count[0] == size.sum();
+    }
+
+    // returns the height of the subtree, or -1 if an invariant fails
+    private int verify(Node<K, V> node, K lo, K hi, long[] count) {
+        if (node == null) return 0;
+        if ((lo != null && node.key.compareTo(lo) <= 0) || (hi != null && node.key.compareTo(hi) >= 0)) return -1;
+        if (isUnlinked(node.version) || isShrinking(node.version)) return -1;
+        if (node.value == null && (node.left == null || node.right == null)) return -1;
+        if (node.value != null) count[0]++;
+        if (node.left != null && node.left.parent != node) return -1;
+        if (node.right != null && node.right.parent != node) return -1;
+        int hL = verify(node.left, lo, node.key, count);
+        if (hL < 0) return -1;
+        int hR = verify(node.right, node.key, hi, count);
+        if (hR < 0) return -1;
+        int h = 1 + Math.max(hL, hR);
+        if (Math.abs(hL - hR) > 1 || h != node.height) return -1;
+        return h;
+    }
+}
@@ -0,0 +1,540 @@
+package jxc033200;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * AVLTree backed by a write-ahead log and periodic checkpoints in a directory
+ * <p>
+ * Every add() or remove() that changes the tree is appended to the log, wal-G, as a
+ * record [length][opcode, key][CRC32]. checkpoint() writes all keys, sorted, to
+ * checkpoint-G+1 and starts wal-G+1; once the checkpoint is safely on disk the older
+ * files are deleted. A checkpoint is written to a temporary file, forced, and renamed
+ * into place atomically, so checkpoint-G either exists complete or not at all.
+ * <p>
+ * open() recovers by loading the newest checkpoint with AVLTree.fromSorted(), which is
+ * linear and does no rotations, then replaying the logs from its generation on. A
+ * record cut short by a crash at the end of the last log is dropped and the log is
+ * truncated there. Restart time is therefore the checkpoint size plus the log tail,
+ * not the whole history.
+ * <p>
+ * Group commit: records are appended to an in-memory buffer under the tree's lock.
+ * Forcing the log to disk happens under a separate commit lock: the first waiting
+ * thread swaps the buffer out, writes and forces it, and that single force covers
+ * every record appended before the swap, so threads that queued behind it find their
+ * record already durable. With Commit.EVERY_WRITE each add()/remove() returns only once
+ * its record is durable; with Commit.ON_SYNC they return at once and sync() (or a full
+ * buffer, or close()) makes them durable.
+ * <p>
+ * All methods are thread-safe; tree operations are serialized.
+ * <p>
+ * If writing or forcing the log fails, the log is in an unknown state: records may be
+ * partly on disk. The tree then refuses every further add(), remove(), sync() and
+ * checkpoint() with an IOException, while contains() and size() keep working on the
+ * in-memory tree. The changes that were acknowledged before the failure are on disk;
+ * open() recovers them.
+ * <p>
+ * @param <T> - key type
+ */
+public class DurableAVLTree<T extends Comparable<? super T>> implements Closeable {
+    public enum Commit { EVERY_WRITE, ON_SYNC }
+
+    static final byte[] CHECKPOINT_MAGIC = {'A', 'V', 'L', 'C', 1};
+    static final String WAL_PREFIX = "wal-";
+    static final String CHECKPOINT_PREFIX = "checkpoint-";
+    static final String TMP_SUFFIX = ".tmp";
+    static final int AUTO_SYNC_BYTES = 1 << 20;     // ON_SYNC: commit once this much is buffered
+    static final int MAX_RECORD_BYTES = 1 << 20;
+
+    private static final byte ADD = 1;
+    private static final byte REMOVE = 2;
+
+    private final Path dir;
+    private final KeyCodec<T> codec;
+    private final Commit commit;
+    private final AVLTree<T> tree;
+
+    // guarded by this: the tree, the append buffer and appendedLsn
+    private RecordBuffer buffer = new RecordBuffer();
+    private RecordBuffer spare = new RecordBuffer();
+    private long appendedLsn;       // records appended so far
+    private long generation;        // generation of the current log
+
+    // guarded by commitLock: the log channel and durableLsn
+    private final Object commitLock = new Object();
+    private final Object checkpointLock = new Object();
+    private FileChannel wal;
+    private volatile long durableLsn;
+    private boolean closed;
+    private volatile Throwable failure;     // the first error writing the log, after which nothing more is logged
+
+    private DurableAVLTree(Path dir, KeyCodec<T> codec, Commit commit, AVLTree<T> tree, long generation, FileChannel wal) {
+        this.dir = dir;
+        this.codec = codec;
+        this.commit = commit;
+        this.tree = tree;
+        this.generation = generation;
+        this.wal = wal;
+    }
+
+    /**
+     * Opens the tree stored in dir, creating it if the directory is empty
+     * <p>
+     * @param dir - directory holding the checkpoint and log files
+     * @param codec - key encoding, must be the one the files were written with
+     * @param commit - when add()/remove() become durable
+     * @return the recovered tree
+     * @throws IOException if the files cannot be read or a checkpoint is corrupt
+     */
+    public static <T extends Comparable<? super T>> DurableAVLTree<T> open(Path dir, KeyCodec<T> codec, Commit commit) throws IOException {
+        Files.createDirectories(dir);
+        TreeMap<Long, Path> checkpoints = new TreeMap<>();
+        TreeMap<Long, Path> logs = new TreeMap<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+            for (Path f : files) {
+                String name = f.getFileName().toString();
+                if (name.endsWith(TMP_SUFFIX)) {
+                    Files.delete(f);    // an interrupted checkpoint
+                } else if (name.startsWith(CHECKPOINT_PREFIX)) {
+                    checkpoints.put(Long.parseLong(name.substring(CHECKPOINT_PREFIX.length())), f);
+                } else if (name.startsWith(WAL_PREFIX)) {
+                    logs.put(Long.parseLong(name.substring(WAL_PREFIX.length())), f);
+                }
+            }
+        }
+        long generation = checkpoints.isEmpty() ? 0 : checkpoints.lastKey();
+        AVLTree<T> tree = checkpoints.isEmpty() ? new AVLTree<>() : loadCheckpoint(checkpoints.lastEntry().getValue(), codec);
+        for (Map.Entry<Long, Path> log : logs.tailMap(generation, true).entrySet()) {
+            boolean last = log.getKey().equals(logs.lastKey());
+            replay(log.getValue(), codec, tree, last);
+            generation = log.getKey();
+        }
+        FileChannel wal = FileChannel.open(dir.resolve(WAL_PREFIX + generation),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        return new DurableAVLTree<>(dir, codec, commit, tree, generation, wal);
+    }
+
+    public synchronized boolean contains(T x) {
+        return tree.contains(x);
+    }
+
+    public synchronized int size() {
+        return tree.size;
+    }
+
+    // an in-order copy of the keys, the same raw array BinarySearchTree.toArray() returns
+    @SuppressWarnings("rawtypes")
+    public synchronized Comparable[] toArray() {
+        return tree.toArray();
+    }
+
+    /**
+     * Add x to the tree and log it
+     * <p>
+     * @param x - the key to add
+     * @return true if x was added, false if it was already there (nothing is logged)
+     * @throws IOException if the log cannot be written. If the record could not even be
+     *         encoded, the tree is left without x. If writing or forcing the log failed,
+     *         x stays in the in-memory tree but may not be durable, and the tree refuses
+     *         further writes; reopen it to get back to what the log holds
+     */
+    public boolean add(T x) throws IOException {
+        long lsn;
+        synchronized (this) {
+            ensureOpen();
+            if (!tree.add(x)) return false;
+            try {
+                lsn = append(ADD, x);
+            } catch (Throwable e) {
+                tree.remove(x);     // not logged, so it must not stay in the tree either
+                throw e;
+            }
+        }
+        afterAppend(lsn);
+        return true;
+    }
+
+    /**
+     * Remove x from the tree and log it
+     * <p>
+     * @param x - the key to remove
+     * @return x if it was removed, null if it was not in the tree (nothing is logged)
+     * @throws IOException if the log cannot be written. If the record could not even be
+     *         encoded, x stays in the tree. If writing or forcing the log failed, x is
+     *         gone from the in-memory tree but the removal may not be durable, and the
+     *         tree refuses further writes; reopen it to get back to what the log holds
+     */
+    public T remove(T x) throws IOException {
+        long lsn;
+        synchronized (this) {
+            ensureOpen();
+            if (tree.remove(x) == null) return null;
+            try {
+                lsn = append(REMOVE, x);
+            } catch (Throwable e) {
+                tree.add(x);        // not logged, so it must not stay removed either
+                throw e;
+            }
+        }
+        afterAppend(lsn);
+        return x;
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) throw new IllegalStateException("tree is closed");
+        checkLog();
+    }
+
+    // refuses to touch a log whose last write or force failed
+    private void checkLog() throws IOException {
+        Throwable f = failure;
+        if (f != null) throw new IOException("the log failed earlier and is in an unknown state; reopen the tree", f);
+    }
+
+    // encodes one record into the buffer, returns its sequence number; on failure the buffer is unchanged
+    private long append(byte op, T x) throws IOException {
+        buffer.append(op, x, codec);
+        return ++appendedLsn;
+    }
+
+    private void afterAppend(long lsn) throws IOException {
+        if (commit == Commit.EVERY_WRITE) {
+            commitUpTo(lsn);
+        } else if (buffer.size() >= AUTO_SYNC_BYTES) {     // racy read, only a hint
+            sync();
+        }
+    }
+
+    // makes every record appended so far durable
+    public void sync() throws IOException {
+        checkLog();
+        long lsn;
+        synchronized (this) {
+            lsn = appendedLsn;
+        }
+        commitUpTo(lsn);
+    }
+
+    /**
+     * Waits until record lsn is on disk, forcing the log if nobody else has
+     * <p>
+     * The thread that gets the commit lock first takes everything buffered so far,
+     * so one force serves all the threads queued behind it.
+     */
+    private void commitUpTo(long lsn) throws IOException {
+        if (durableLsn >= lsn) return;
+        synchronized (commitLock) {
+            if (durableLsn >= lsn) return;      // a previous leader's force covered it
+            checkLog();
+            RecordBuffer out;
+            long target;
+            synchronized (this) {
+                out = buffer;
+                buffer = spare;
+                spare = out;
+                target = appendedLsn;
+            }
+            try {
+                write(out, wal);
+                wal.force(false);
+            } catch (Throwable e) {
+                failure = e;
+                throw e;
+            }
+            durableLsn = target;
+        }
+    }
+
+    // writes the records in out to the log; out is emptied even if that fails, so no record is ever written twice
+    private static void write(RecordBuffer out, FileChannel channel) throws IOException {
+        try {
+            ByteBuffer bytes = ByteBuffer.wrap(out.bytes(), 0, out.size());
+            while (bytes.hasRemaining()) {
+                channel.write(bytes);
+            }
+        } finally {
+            out.reset();
+        }
+    }
+
+    /**
+     * Writes all keys to a new checkpoint and drops the logs it makes redundant
+     * <p>
+     * Under the tree lock the keys are copied out and the log buffer is cut, so the
+     * copy holds exactly the records before the cut. Those records are forced to the
+     * current log and a new log is started for the ones after it. Only then is the
+     * checkpoint written, outside the tree lock, so writers carry on meanwhile. After
+     * the checkpoint is renamed into place the previous checkpoint and logs are
+     * deleted. A crash at any point leaves a checkpoint plus logs that rebuild the tree.
+     * <p>
+     * @throws IOException if a file cannot be written
+     */
+    public void checkpoint() throws IOException {
+        synchronized (checkpointLock) {
+            Comparable<?>[] keys;
+            long gen;
+            synchronized (commitLock) {
+                RecordBuffer out;
+                long target;
+                synchronized (this) {
+                    ensureOpen();
+                    keys = tree.toArray();
+                    out = buffer;
+                    buffer = spare;
+                    spare = out;
+                    target = appendedLsn;
+                    gen = ++generation;
+                }
+                try {
+                    write(out, wal);
+                    wal.force(false);
+                    durableLsn = target;
+                    wal.close();
+                    wal = FileChannel.open(dir.resolve(WAL_PREFIX + gen),
+                            StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+                } catch (Throwable e) {
+                    failure = e;
+                    throw e;
+                }
+            }
+            writeCheckpoint(keys, gen);
+            deleteBefore(gen);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void writeCheckpoint(Comparable<?>[] keys, long gen) throws IOException {
+        Path tmp = dir.resolve(CHECKPOINT_PREFIX + gen + TMP_SUFFIX);
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            // the streams are flushed, not closed, since closing them would close the channel
+            CRC32 crc = new CRC32();
+            DataOutputStream out = new DataOutputStream(new CheckedOutputStream(
+                    new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16), crc));
+            out.write(CHECKPOINT_MAGIC);
+            out.writeLong(keys.length);
+            for (Comparable<?> k : keys) {
+                codec.write(out, (T) k);
+            }
+            out.writeInt((int) crc.getValue());     // checksum of everything before it
+            out.flush();
+            channel.force(true);
+        }
+        Files.move(tmp, dir.resolve(CHECKPOINT_PREFIX + gen), StandardCopyOption.ATOMIC_MOVE);
+        forceDirectory(dir);
+    }
+
+    // deletes checkpoints and logs older than generation gen
+    private void deleteBefore(long gen) throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+            for (Path f : files) {
+                String name = f.getFileName().toString();
+                if (name.endsWith(TMP_SUFFIX)) continue;
+                String prefix = name.startsWith(WAL_PREFIX) ? WAL_PREFIX
+                        : name.startsWith(CHECKPOINT_PREFIX) ? CHECKPOINT_PREFIX : null;
+                if (prefix != null && Long.parseLong(name.substring(prefix.length())) < gen) {
+                    Files.delete(f);
+                }
+            }
+        }
+    }
+
+    // makes a rename durable; not every platform can open a directory, and then this is skipped
+    private static void forceDirectory(Path dir) {
+        try (FileChannel d = FileChannel.open(dir, StandardOpenOption.READ)) {
+            d.force(true);
+        } catch (IOException e) {
+            // best effort
+        }
+    }
+
+    /**
+     * Reads a checkpoint into a new tree with one linear bottom-up build
+     * <p>
+     * @throws IOException if the file is not a checkpoint or its checksum is wrong
+     */
+    private static <T extends Comparable<? super T>> AVLTree<T> loadCheckpoint(Path file, KeyCodec<T> codec) throws IOException {
+        try (InputStream raw = new BufferedInputStream(Files.newInputStream(file), 1 << 16)) {
+            CRC32 crc = new CRC32();
+            DataInputStream in = new DataInputStream(new CheckedInputStream(raw, crc));
+            byte[] magic = new byte[CHECKPOINT_MAGIC.length];
+            in.readFully(magic);
+            if (!Arrays.equals(magic, CHECKPOINT_MAGIC)) {
+                throw new IOException(file + " is not a checkpoint");
+            }
+            long count = in.readLong();
+            if (count < 0 || count > Integer.MAX_VALUE) {
+                throw new IOException(file + ": bad key count " + count);
+            }
+            AVLTree<T> tree;
+            try {
+                tree = AVLTree.fromSorted(new Iterator<T>() {
+                    long left = count;
+
+                    public boolean hasNext() {
+                        return left > 0;
+                    }
+
+                    public T next() {
+                        if (left == 0) throw new NoSuchElementException();
+                        left--;
+                        try {
+                            return codec.read(in);
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    }
+                }, (int) count);
+            } catch (UncheckedIOException e) {
+                throw new IOException(file + ": truncated checkpoint", e.getCause());
+            } catch (IllegalArgumentException e) {
+                throw new IOException(file + ": keys out of order", e);
+            }
+            int expected = (int) crc.getValue();
+            if (new DataInputStream(raw).readInt() != expected) {
+                throw new IOException(file + ": checksum mismatch");
+            }
+            return tree;
+        }
+    }
+
+    /**
+     * Applies the records of one log to the tree
+     * <p>
+     * Reading stops at the first record that is incomplete or fails its checksum. In
+     * the last log that is a write cut short by a crash, and the log is truncated to
+     * the records before it; in an older log, which was forced before the next one was
+     * started, it is corruption.
+     */
+    private static <T extends Comparable<? super T>> void replay(Path file, KeyCodec<T> codec, AVLTree<T> tree, boolean last) throws IOException {
+        long good = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 1 << 16))) {
+            CRC32 crc = new CRC32();
+            byte[] record = new byte[64];
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                    if (length < 1 || length > MAX_RECORD_BYTES) break;
+                    if (record.length < length) record = new byte[Math.max(length, 2 * record.length)];
+                    in.readFully(record, 0, length);
+                    crc.reset();
+                    crc.update(record, 0, length);
+                    if (in.readInt() != (int) crc.getValue()) break;
+                } catch (EOFException e) {
+                    break;
+                }
+                DataInputStream body = new DataInputStream(new ByteArrayInputStream(record, 1, length - 1));
+                T key = codec.read(body);
+                if (record[0] == ADD) {
+                    tree.add(key);
+                } else if (record[0] == REMOVE) {
+                    tree.remove(key);
+                } else {
+                    throw new IOException(file + ": bad opcode " + record[0] + " at offset " + good);
+                }
+                good += 4 + length + 4;
+            }
+        }
+        if (good < Files.size(file)) {
+            if (!last) {
+                throw new IOException(file + ": corrupt record at offset " + good);
+            }
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                channel.truncate(good);
+                channel.force(true);
+            }
+        }
+    }
+
+    // makes pending records durable and closes the log; the tree can be reopened with open()
+    public void close() throws IOException {
+        synchronized (checkpointLock) {
+            IOException error = null;
+            if (failure == null) {
+                try {
+                    sync();
+                } catch (IOException e) {
+                    error = e;      // still close the channel
+                }
+            }
+            synchronized (commitLock) {
+                synchronized (this) {
+                    if (closed) return;
+                    closed = true;
+                }
+                wal.close();
+            }
+            if (error != null) throw error;
+        }
+    }
+
+    /**
+     * Growable byte buffer of framed log records
+     * <p>
+     * Each record is [int length][opcode byte, encoded key][int CRC32 of the opcode
+     * and key]. The key is encoded in place after the length slot, which is patched
+     * afterwards, so appending a record allocates nothing once the buffer has grown.
+     */
+    private static final class RecordBuffer extends ByteArrayOutputStream {
+        private final DataOutputStream data = new DataOutputStream(this);
+        private final CRC32 crc = new CRC32();
+
+        RecordBuffer() {
+            super(1 << 12);
+        }
+
+        // appends one whole record, or nothing: a failed encode must not leave half a frame for the next one to follow
+        <T> void append(byte op, T key, KeyCodec<T> codec) throws IOException {
+            int start = count;
+            try {
+                data.writeInt(0);
+                data.writeByte(op);
+                codec.write(data, key);
+                int length = count - start - 4;
+                if (length > MAX_RECORD_BYTES) {
+                    throw new IOException("key encodes to more than " + MAX_RECORD_BYTES + " bytes");
+                }
+                buf[start] = (byte) (length >>> 24);
+                buf[start + 1] = (byte) (length >>> 16);
+                buf[start + 2] = (byte) (length >>> 8);
+                buf[start + 3] = (byte) length;
+                crc.reset();
+                crc.update(buf, start + 4, length);
+                data.writeInt((int) crc.getValue());
+            } catch (Throwable e) {
+                count = start;
+                throw e;
+            }
+        }
+
+        byte[] bytes() {
+            return buf;
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package jxc033200;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Converts keys to and from bytes for DurableAVLTree's log and checkpoint files
+ * <p>
+ * @param <T> - key type
+ */
+public interface KeyCodec<T> {
+    void write(DataOutput out, T key) throws IOException;
+
+    T read(DataInput in) throws IOException;
+
+    /**
+     * Long keys as zigzag varints, the encoding of the binary operation format: the
+     * sign goes to the low bit, then 7 bits per byte, low bits first, high bit set on
+     * all bytes but the last. Small keys of either sign take one or two bytes.
+     */
+    KeyCodec<Long> LONG = new KeyCodec<Long>() {
+        public void write(DataOutput out, Long key) throws IOException {
+            long v = (key << 1) ^ (key >> 63);
+            while ((v & ~0x7FL) != 0) {
+                out.writeByte((int) ((v & 0x7F) | 0x80));
+                v >>>= 7;
+            }
+            out.writeByte((int) v);
+        }
+
+        public Long read(DataInput in) throws IOException {
+            long v = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                byte b = in.readByte();
+                v |= (long) (b & 0x7F) << shift;
+                if (b >= 0) {
+                    return (v >>> 1) ^ -(v & 1);
+                }
+            }
+            throw new IOException("varint longer than 10 bytes");
+        }
+    };
+
+    // String keys in modified UTF-8, at most 65535 bytes each
+    KeyCodec<String> STRING = new KeyCodec<String>() {
+        public void write(DataOutput out, String key) throws IOException {
+            out.writeUTF(key);
+        }
+
+        public String read(DataInput in) throws IOException {
+            return in.readUTF();
+        }
+    };
+}
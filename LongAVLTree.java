@@ -0,0 +1,262 @@
+package jxc033200;
+
+/**
+ * AVL tree specialized for primitive long keys
+ * <p>
+ * Same add/remove/contains/verify operations as AVLTree&lt;Long&gt;, but keys are stored
+ * unboxed and compared with &lt; and &gt;, so there is no Long object per key and no
+ * compareTo()/equals() call in the search loop.
+ * <p>
+ * Entries are not objects: they live in a LongNodePool and are linked by int index,
+ * with LongNodePool.NIL as null. HEAP storage keeps them in parallel primitive arrays.
+ * OFF_HEAP storage keeps them in direct memory, outside the GC's reach. Slots freed by
+ * remove() are reused by later adds.
+ * <p>
+ * The search path is recorded in a fixed array instead of a Deque. The array is sized
+ * for the largest possible AVL height, since an AVL tree with h levels has at least
+ * fib(h+2)-1 entries.
+ */
+public class LongAVLTree {
+    public enum Storage { HEAP, OFF_HEAP }
+
+    static final int MAX_HEIGHT = 64;   // 2^31 entries need fewer than 46 AVL levels
+    static final int NIL = LongNodePool.NIL;
+
+    final LongNodePool pool;
+    int root;
+    int size;
+    private final int[] path = new int[MAX_HEIGHT];    // ancestors of the entry being added or removed
+
+    public LongAVLTree() {
+        this(Storage.HEAP);
+    }
+
+    public LongAVLTree(Storage storage) {
+        pool = (storage == Storage.OFF_HEAP) ? new LongNodePool.OffHeap() : new LongNodePool.Heap(16);
+        root = NIL;
+        size = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    // removes every key and releases the entry storage
+    public void clear() {
+        pool.clear();
+        root = NIL;
+        size = 0;
+    }
+
+    /**
+     * Is x contained in tree?
+     * <p>
+     * @param x - the key to search for
+     * @return true if found, false if not found
+     */
+    public boolean contains(long x) {
+        LongNodePool p = pool;
+        int t = root;
+        while (t != NIL) {
+            long k = p.key(t);
+            if (x < k) {
+                t = p.left(t);
+            } else if (x > k) {
+                t = p.right(t);
+            } else {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Adds a key to the tree, rebalancing it if necessary to maintain AVL properties
+     * <p>
+     * Walks down from the root recording the path, attaches a new leaf, then retraces
+     * the path with fixPath().
+     * <p>
+     * @param x - the key to add
+     * @return true if the key was added, false if it was already present
+     */
+    public boolean add(long x) {
+        LongNodePool p = pool;
+        if (root == NIL) {
+            root = p.allocate(x);
+            size++;
+            return true;
+        }
+        int depth = 0;
+        int t = root;
+        while (true) {
+            path[depth++] = t;
+            long k = p.key(t);
+            if (x < k) {
+                int l = p.left(t);
+                if (l == NIL) {
+                    p.left(t, p.allocate(x));
+                    break;
+                }
+                t = l;
+            } else if (x > k) {
+                int r = p.right(t);
+                if (r == NIL) {
+                    p.right(t, p.allocate(x));
+                    break;
+                }
+                t = r;
+            } else {
+                return false;
+            }
+        }
+        size++;
+        fixPath(depth);
+        return true;
+    }
+
+    /**
+     * Removes a key from the tree, rebalancing it to maintain AVL properties
+     * <p>
+     * An entry with two children takes its successor's key and the successor is
+     * spliced out instead. Either way the spliced slot goes back to the pool and the
+     * path down to its parent is retraced with fixPath().
+     * <p>
+     * @param x - the key to remove
+     * @return true if the key was removed, false if it was not in the tree
+     */
+    public boolean remove(long x) {
+        LongNodePool p = pool;
+        int depth = 0;
+        int t = root;
+        while (t != NIL) {
+            long k = p.key(t);
+            if (x == k) break;
+            path[depth++] = t;
+            t = (x < k) ? p.left(t) : p.right(t);
+        }
+        if (t == NIL) return false;
+        if (p.left(t) != NIL && p.right(t) != NIL) {    // replace with the minimum of the right subtree
+            path[depth++] = t;
+            int min = p.right(t);
+            while (p.left(min) != NIL) {
+                path[depth++] = min;
+                min = p.left(min);
+            }
+            p.key(t, p.key(min));
+            t = min;
+        }
+        int child = (p.left(t) == NIL) ? p.right(t) : p.left(t);
+        if (depth == 0) {
+            root = child;
+        } else if (p.left(path[depth - 1]) == t) {
+            p.left(path[depth - 1], child);
+        } else {
+            p.right(path[depth - 1], child);
+        }
+        p.free(t);
+        size--;
+        fixPath(depth);
+        return true;
+    }
+
+    /**
+     * Retraces path[0..depth-1] bottom-up, updating heights and rotating
+     * <p>
+     * Stops at the first subtree whose height is the same as before, since nothing
+     * above it can change. This serves both add() and remove().
+     * <p>
+     * @param depth - number of entries on the path
+     */
+    private void fixPath(int depth) {
+        LongNodePool p = pool;
+        for (int i = depth - 1; i >= 0; i--) {
+            int node = path[i];
+            int oldHeight = p.height(node);
+            updateHeight(node);
+            int newNode = rebalance(node);
+            if (newNode != node) {
+                if (i == 0) {
+                    root = newNode;
+                } else if (p.left(path[i - 1]) == node) {
+                    p.left(path[i - 1], newNode);
+                } else {
+                    p.right(path[i - 1], newNode);
+                }
+            }
+            if (p.height(newNode) == oldHeight) {
+                return;
+            }
+        }
+    }
+
+    private void updateHeight(int t) {
+        pool.height(t, 1 + Math.max(pool.height(pool.left(t)), pool.height(pool.right(t))));
+    }
+
+    private int getBalanceFactor(int t) {
+        return pool.height(pool.right(t)) - pool.height(pool.left(t));
+    }
+
+    private int rotateLeft(int t) {
+        int newRoot = pool.right(t);
+        pool.right(t, pool.left(newRoot));
+        pool.left(newRoot, t);
+        updateHeight(t);
+        updateHeight(newRoot);
+        return newRoot;
+    }
+
+    private int rotateRight(int t) {
+        int newRoot = pool.left(t);
+        pool.left(t, pool.right(newRoot));
+        pool.right(newRoot, t);
+        updateHeight(t);
+        updateHeight(newRoot);
+        return newRoot;
+    }
+
+    // same cases as AVLTree.rebalance()
+    private int rebalance(int t) {
+        int balanceFactor = getBalanceFactor(t);
+        if (balanceFactor < -1) {
+            if (getBalanceFactor(pool.left(t)) > 0) {
+                pool.left(t, rotateLeft(pool.left(t)));
+            }
+            t = rotateRight(t);
+        } else if (balanceFactor > 1) {
+            if (getBalanceFactor(pool.right(t)) < 0) {
+                pool.right(t, rotateRight(pool.right(t)));
+            }
+            t = rotateLeft(t);
+        }
+        return t;
+    }
+
+    /**
+     * Verify that the tree is a valid AVL tree
+     * <p>
+     * Checks key order, the balance condition, that every stored height matches the
+     * height recomputed bottom-up, and that size matches the pool's live count.
+     * <p>
+     * @return true if all invariants hold
+     */
+    public boolean verify() {
+        return pool.live == size && verify(root, Long.MIN_VALUE, false, Long.MAX_VALUE, false) != INVALID;
+    }
+
+    private static final int INVALID = -2;
+
+    // returns the height of the subtree, or INVALID; keys must lie strictly inside (lo, hi)
+    private int verify(int t, long lo, boolean hasLo, long hi, boolean hasHi) {
+        if (t == NIL) return -1;
+        long k = pool.key(t);
+        if ((hasLo && k <= lo) || (hasHi && k >= hi)) return INVALID;
+        int lh = verify(pool.left(t), lo, hasLo, k, true);
+        if (lh == INVALID) return INVALID;
+        int rh = verify(pool.right(t), k, true, hi, hasHi);
+        if (rh == INVALID) return INVALID;
+        int h = 1 + Math.max(lh, rh);
+        if (Math.abs(lh - rh) > 1 || h != pool.height(t)) return INVALID;
+        return h;
+    }
+}
@@ -0,0 +1,311 @@
+package jxc033200;
+
+import java.util.Arrays;
+
+/**
+ * Ordered set of primitive long keys stored in a B-tree
+ * <p>
+ * Same add/remove/contains/verify operations as LongAVLTree, different layout. An AVL
+ * tree has one key per entry and about 1.44 log2(n) levels, and every level is a
+ * separate object, so a search costs roughly one cache miss per level. Here a node
+ * holds up to 2t-1 keys in one long[] (t = 16: 31 keys, 248 bytes, four 64-byte cache
+ * lines) and the search within a node is a binary search over that array. The tree
+ * is about log16(n) levels deep, so a search touches a quarter as many nodes, and the
+ * keys it compares inside a node are contiguous.
+ * <p>
+ * The algorithms are the textbook ones (Cormen et al., ch. 18). add() splits full
+ * nodes on the way down, so it never has to go back up. remove() makes sure every
+ * node it descends into has at least t keys, by borrowing from or merging with a
+ * sibling, so a key can always be taken out where it is found.
+ */
+public class LongBTreeSet {
+    static final int DEFAULT_MIN_DEGREE = 16;
+
+    static final class Node {
+        final long[] keys;
+        Node[] children;    // null for a leaf
+        int n;              // number of keys in use
+
+        Node(int maxKeys, boolean leaf) {
+            keys = new long[maxKeys];
+            children = leaf ? null : new Node[maxKeys + 1];
+        }
+
+        boolean isLeaf() {
+            return children == null;
+        }
+    }
+
+    final int t;            // minimum degree: every node but the root has t-1 to 2t-1 keys
+    Node root;
+    int size;
+
+    public LongBTreeSet() {
+        this(DEFAULT_MIN_DEGREE);
+    }
+
+    /**
+     * @param minDegree - t, at least 2; nodes hold up to 2t-1 keys
+     */
+    public LongBTreeSet(int minDegree) {
+        if (minDegree < 2) {
+            throw new IllegalArgumentException("minimum degree must be at least 2, got " + minDegree);
+        }
+        t = minDegree;
+        root = new Node(2 * t - 1, true);
+        size = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    // index of x in node, or -(insertion point) - 1
+    private static int search(Node node, long x) {
+        return Arrays.binarySearch(node.keys, 0, node.n, x);
+    }
+
+    /**
+     * Is x contained in the set?
+     * <p>
+     * @param x - the key to search for
+     * @return true if found, false if not found
+     */
+    public boolean contains(long x) {
+        Node node = root;
+        while (true) {
+            int i = search(node, x);
+            if (i >= 0) return true;
+            if (node.isLeaf()) return false;
+            node = node.children[-i - 1];
+        }
+    }
+
+    /**
+     * Adds a key to the set
+     * <p>
+     * Walks down from the root, splitting every full node it is about to enter, and
+     * inserts the key into a leaf that therefore has room for it. A full root is split
+     * first, which is the only way the tree grows in height.
+     * <p>
+     * @param x - the key to add
+     * @return true if the key was added, false if it was already present
+     */
+    public boolean add(long x) {
+        if (root.n == 2 * t - 1) {
+            Node newRoot = new Node(2 * t - 1, false);
+            newRoot.children[0] = root;
+            splitChild(newRoot, 0);
+            root = newRoot;
+        }
+        Node node = root;
+        while (true) {
+            int i = search(node, x);
+            if (i >= 0) return false;
+            i = -i - 1;
+            if (node.isLeaf()) {
+                System.arraycopy(node.keys, i, node.keys, i + 1, node.n - i);
+                node.keys[i] = x;
+                node.n++;
+                size++;
+                return true;
+            }
+            if (node.children[i].n == 2 * t - 1) {
+                splitChild(node, i);
+                long median = node.keys[i];
+                if (x == median) return false;
+                if (x > median) i++;
+            }
+            node = node.children[i];
+        }
+    }
+
+    // splits the full child i of parent around its median key, which moves up into parent
+    private void splitChild(Node parent, int i) {
+        Node y = parent.children[i];
+        Node z = new Node(2 * t - 1, y.isLeaf());
+        System.arraycopy(y.keys, t, z.keys, 0, t - 1);
+        z.n = t - 1;
+        if (!y.isLeaf()) {
+            System.arraycopy(y.children, t, z.children, 0, t);
+            Arrays.fill(y.children, t, 2 * t, null);
+        }
+        y.n = t - 1;
+        System.arraycopy(parent.children, i + 1, parent.children, i + 2, parent.n - i);
+        parent.children[i + 1] = z;
+        System.arraycopy(parent.keys, i, parent.keys, i + 1, parent.n - i);
+        parent.keys[i] = y.keys[t - 1];
+        parent.n++;
+    }
+
+    /**
+     * Removes a key from the set
+     * <p>
+     * Walks down from the root. Before entering a child with only t-1 keys it gives
+     * that child a key from a sibling, or merges it with a sibling, so whatever is
+     * removed below never leaves a node short. A key found in an internal node is
+     * replaced by its predecessor or successor from a child with t keys to spare, or
+     * the two children around it are merged and the key is removed from the result.
+     * If the root ends up without keys, its only child becomes the root.
+     * <p>
+     * @param x - the key to remove
+     * @return true if the key was removed, false if it was not in the set
+     */
+    public boolean remove(long x) {
+        boolean removed = delete(root, x);
+        if (root.n == 0 && !root.isLeaf()) {
+            root = root.children[0];
+        }
+        if (removed) size--;
+        return removed;
+    }
+
+    private boolean delete(Node node, long x) {
+        while (true) {
+            int i = search(node, x);
+            if (i >= 0) {
+                if (node.isLeaf()) {
+                    System.arraycopy(node.keys, i + 1, node.keys, i, node.n - i - 1);
+                    node.n--;
+                    return true;
+                }
+                Node left = node.children[i];
+                Node right = node.children[i + 1];
+                if (left.n >= t) {              // replace with the predecessor, then delete that
+                    x = max(left);
+                    node.keys[i] = x;
+                    node = left;
+                } else if (right.n >= t) {      // replace with the successor, then delete that
+                    x = min(right);
+                    node.keys[i] = x;
+                    node = right;
+                } else {                        // merge, x ends up in the middle of left
+                    merge(node, i);
+                    node = left;
+                }
+                continue;
+            }
+            if (node.isLeaf()) return false;
+            i = -i - 1;
+            if (node.children[i].n < t) {
+                i = fill(node, i);
+            }
+            node = node.children[i];
+        }
+    }
+
+    private static long max(Node node) {
+        while (!node.isLeaf()) {
+            node = node.children[node.n];
+        }
+        return node.keys[node.n - 1];
+    }
+
+    private static long min(Node node) {
+        while (!node.isLeaf()) {
+            node = node.children[0];
+        }
+        return node.keys[0];
+    }
+
+    // gives child i of node at least t keys; returns the index of the child that now covers its range
+    private int fill(Node node, int i) {
+        if (i > 0 && node.children[i - 1].n >= t) {
+            borrowFromLeft(node, i);
+        } else if (i < node.n && node.children[i + 1].n >= t) {
+            borrowFromRight(node, i);
+        } else if (i < node.n) {
+            merge(node, i);
+        } else {
+            merge(node, i - 1);
+            i--;
+        }
+        return i;
+    }
+
+    // rotates the last key of child i-1 up into node and node's key i-1 down into child i
+    private static void borrowFromLeft(Node node, int i) {
+        Node c = node.children[i];
+        Node s = node.children[i - 1];
+        System.arraycopy(c.keys, 0, c.keys, 1, c.n);
+        c.keys[0] = node.keys[i - 1];
+        if (!c.isLeaf()) {
+            System.arraycopy(c.children, 0, c.children, 1, c.n + 1);
+            c.children[0] = s.children[s.n];
+            s.children[s.n] = null;
+        }
+        node.keys[i - 1] = s.keys[s.n - 1];
+        s.n--;
+        c.n++;
+    }
+
+    // rotates the first key of child i+1 up into node and node's key i down into child i
+    private static void borrowFromRight(Node node, int i) {
+        Node c = node.children[i];
+        Node s = node.children[i + 1];
+        c.keys[c.n] = node.keys[i];
+        node.keys[i] = s.keys[0];
+        System.arraycopy(s.keys, 1, s.keys, 0, s.n - 1);
+        if (!c.isLeaf()) {
+            c.children[c.n + 1] = s.children[0];
+            System.arraycopy(s.children, 1, s.children, 0, s.n);
+            s.children[s.n] = null;
+        }
+        s.n--;
+        c.n++;
+    }
+
+    // merges child i+1 and node's key i into child i, removing both from node
+    private static void merge(Node node, int i) {
+        Node c = node.children[i];
+        Node s = node.children[i + 1];
+        c.keys[c.n] = node.keys[i];
+        System.arraycopy(s.keys, 0, c.keys, c.n + 1, s.n);
+        if (!c.isLeaf()) {
+            System.arraycopy(s.children, 0, c.children, c.n + 1, s.n + 1);
+        }
+        c.n += s.n + 1;
+        System.arraycopy(node.keys, i + 1, node.keys, i, node.n - i - 1);
+        System.arraycopy(node.children, i + 2, node.children, i + 1, node.n - i - 1);
+        node.children[node.n] = null;
+        node.n--;
+    }
+
+    /**
+     * Verify that the tree is a valid B-tree
+     * <p>
+     * Checks that keys are strictly increasing within and across nodes, that every
+     * node but the root holds t-1 to 2t-1 keys, that all leaves are at the same depth,
+     * and that size matches the number of keys.
+     * <p>
+     * @return true if all invariants hold
+     */
+    public boolean verify() {
+        int depth = 0;
+        for (Node node = root; !node.isLeaf(); node = node.children[0]) {
+            depth++;
+        }
+        return verify(root, Long.MIN_VALUE, false, Long.MAX_VALUE, false, depth) == size;
+    }
+
+    // returns the number of keys in the subtree, or -1; keys must lie strictly inside (lo, hi)
+    private long verify(Node node, long lo, boolean hasLo, long hi, boolean hasHi, int depth) {
+        if (node != root && (node.n < t - 1 || node.n > 2 * t - 1)) return -1;
+        if (node.isLeaf() != (depth == 0)) return -1;
+        for (int i = 0; i < node.n; i++) {
+            long k = node.keys[i];
+            if ((i > 0 && node.keys[i - 1] >= k) || (hasLo && k <= lo) || (hasHi && k >= hi)) return -1;
+        }
+        long count = node.n;
+        if (!node.isLeaf()) {
+            for (int i = 0; i <= node.n; i++) {
+                long c = verify(node.children[i],
+                        (i == 0) ? lo : node.keys[i - 1], i > 0 || hasLo,
+                        (i == node.n) ? hi : node.keys[i], i < node.n || hasHi, depth - 1);
+                if (c < 0) return -1;
+                count += c;
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,181 @@
+package jxc033200;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Storage for LongAVLTree entries, addressed by int index instead of by reference
+ * <p>
+ * Every entry has a long key, int left and right child links, and a byte height.
+ * Index 0 is the null entry (NIL): its height is -1, so height(left(n)) needs no null
+ * check. Slots freed by remove() are chained through their left link and reused
+ * before the pool grows.
+ * <p>
+ * Two layouts are provided. Heap keeps parallel primitive arrays, 17 bytes per entry
+ * and no object per key. OffHeap keeps the same columns in direct ByteBuffer pages,
+ * so the entries are invisible to the GC. It is bounded by -XX:MaxDirectMemorySize
+ * and int indices (2^31 entries) rather than by the heap.
+ */
+abstract class LongNodePool {
+    static final int NIL = 0;
+
+    int next = 1;       // first never-used slot
+    int freeHead = NIL; // most recently freed slot
+    int live;           // allocated and not freed
+
+    abstract long key(int n);
+    abstract void key(int n, long key);
+    abstract int left(int n);
+    abstract void left(int n, int child);
+    abstract int right(int n);
+    abstract void right(int n, int child);
+    abstract int height(int n);
+    abstract void height(int n, int height);
+
+    // make sure slot n can be written
+    abstract void ensureCapacity(int n);
+
+    // drop all entries and release the storage
+    abstract void clear();
+
+    /**
+     * Returns a slot holding a new leaf with the given key
+     * <p>
+     * @param key - the key of the new entry
+     * @return the index of the entry
+     */
+    int allocate(long key) {
+        int n = freeHead;
+        if (n != NIL) {
+            freeHead = left(n);
+        } else {
+            if (next == Integer.MAX_VALUE) {
+                throw new IllegalStateException("node pool is full");
+            }
+            n = next++;
+            ensureCapacity(n);
+        }
+        key(n, key);
+        left(n, NIL);
+        right(n, NIL);
+        height(n, 0);
+        live++;
+        return n;
+    }
+
+    // puts slot n on the free list
+    void free(int n) {
+        left(n, freeHead);
+        freeHead = n;
+        live--;
+    }
+
+    void reset() {
+        next = 1;
+        freeHead = NIL;
+        live = 0;
+    }
+
+    /**
+     * Parallel primitive arrays on the heap, grown by doubling
+     */
+    static final class Heap extends LongNodePool {
+        long[] keys;
+        int[] lefts, rights;
+        byte[] heights;
+
+        Heap(int initialCapacity) {
+            allocateArrays(Math.max(initialCapacity, 16));
+        }
+
+        private void allocateArrays(int capacity) {
+            keys = new long[capacity];
+            lefts = new int[capacity];
+            rights = new int[capacity];
+            heights = new byte[capacity];
+            heights[NIL] = -1;
+        }
+
+        long key(int n) { return keys[n]; }
+        void key(int n, long key) { keys[n] = key; }
+        int left(int n) { return lefts[n]; }
+        void left(int n, int child) { lefts[n] = child; }
+        int right(int n) { return rights[n]; }
+        void right(int n, int child) { rights[n] = child; }
+        int height(int n) { return heights[n]; }
+        void height(int n, int height) { heights[n] = (byte) height; }
+
+        void ensureCapacity(int n) {
+            if (n < keys.length) return;
+            int capacity = (int) Math.min(Integer.MAX_VALUE - 8, 2L * keys.length);
+            if (n >= capacity) {
+                throw new IllegalStateException("heap node pool is full, use off-heap storage");
+            }
+            keys = Arrays.copyOf(keys, capacity);
+            lefts = Arrays.copyOf(lefts, capacity);
+            rights = Arrays.copyOf(rights, capacity);
+            heights = Arrays.copyOf(heights, capacity);
+        }
+
+        void clear() {
+            allocateArrays(16);
+            reset();
+        }
+    }
+
+    /**
+     * Direct ByteBuffer pages of PAGE_NODES entries each
+     * <p>
+     * Inside a page the columns are stored one after another (all keys, all left
+     * links, all right links, all heights), so every field is naturally aligned.
+     * Pages are allocated on demand and never moved, so growing does not copy.
+     */
+    static final class OffHeap extends LongNodePool {
+        static final int PAGE_SHIFT = 16;
+        static final int PAGE_NODES = 1 << PAGE_SHIFT;
+        static final int PAGE_MASK = PAGE_NODES - 1;
+        static final int LEFT_OFFSET = 8 * PAGE_NODES;
+        static final int RIGHT_OFFSET = 12 * PAGE_NODES;
+        static final int HEIGHT_OFFSET = 16 * PAGE_NODES;
+        static final int PAGE_BYTES = 17 * PAGE_NODES;
+
+        ByteBuffer[] pages = new ByteBuffer[16];
+
+        OffHeap() {
+            ensureCapacity(NIL);
+            height(NIL, -1);
+        }
+
+        private ByteBuffer page(int n) {
+            return pages[n >>> PAGE_SHIFT];
+        }
+
+        long key(int n) { return page(n).getLong((n & PAGE_MASK) << 3); }
+        void key(int n, long key) { page(n).putLong((n & PAGE_MASK) << 3, key); }
+        int left(int n) { return page(n).getInt(LEFT_OFFSET + ((n & PAGE_MASK) << 2)); }
+        void left(int n, int child) { page(n).putInt(LEFT_OFFSET + ((n & PAGE_MASK) << 2), child); }
+        int right(int n) { return page(n).getInt(RIGHT_OFFSET + ((n & PAGE_MASK) << 2)); }
+        void right(int n, int child) { page(n).putInt(RIGHT_OFFSET + ((n & PAGE_MASK) << 2), child); }
+        int height(int n) { return page(n).get(HEIGHT_OFFSET + (n & PAGE_MASK)); }
+        void height(int n, int height) { page(n).put(HEIGHT_OFFSET + (n & PAGE_MASK), (byte) height); }
+
+        void ensureCapacity(int n) {
+            int p = n >>> PAGE_SHIFT;
+            if (p >= pages.length) {
+                pages = Arrays.copyOf(pages, Math.max(p + 1, 2 * pages.length));
+            }
+            if (pages[p] == null) {
+                pages[p] = ByteBuffer.allocateDirect(PAGE_BYTES).order(ByteOrder.nativeOrder());
+            }
+        }
+
+        // direct buffers are released when the pages become unreachable
+        void clear() {
+            pages = new ByteBuffer[16];
+            reset();
+            ensureCapacity(NIL);
+            height(NIL, -1);
+        }
+    }
+}
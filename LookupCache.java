@@ -0,0 +1,285 @@
+package jxc033200;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded hash cache of search results, in front of AVLTree.contains() and AVLTreeMap.get()
+ * <p>
+ * When a few keys take most of the lookups, a search that is answered by one hash probe
+ * instead of about 1.44 log2(n) compareTo() calls pays off. The cache maps a key to the
+ * entry that holds it, or to nothing for a key known to be absent, so negative results
+ * are cached too. Since it keeps the entry and not a copy, a map value replaced in
+ * place is seen without any invalidation.
+ * <p>
+ * The cache is 4-way set-associative: the hash picks a set of WAYS lines and a key can
+ * only live in one of them, so a lookup checks at most 4 lines and never chains. Lines
+ * are immutable and sit in an AtomicReferenceArray, so a reader sees a whole line or
+ * none, never a key with another key's entry, and takes no lock. When a set is full,
+ * the victim is chosen by CLOCK: every line has a reference bit that hits set, and the
+ * hand of the set clears bits until it finds a line that was not used since it last
+ * passed. With TINY_LFU a count-min sketch (Einziger, Friedman and Manes, "TinyLFU: A
+ * Highly Efficient Cache Admission Policy") also estimates how often each key was looked
+ * up recently, and a new key only replaces the CLOCK victim if it was asked for more
+ * often, so a scan of cold keys cannot flush the hot ones. The reference bits, hands and
+ * sketch counters are plain fields updated racily: a lost update only makes eviction a
+ * little less accurate.
+ * <p>
+ * The tree invalidates exactly the keys a change affects: the key add() attaches, the
+ * key remove() unlinks, and the successor whose contents moved into the removed entry's
+ * place. Rotations move entries, not keys, so they invalidate nothing. Changes that
+ * rebuild the tree (bulk loading, set operations, split and join) clear the whole cache,
+ * in O(1), by starting a new epoch: a line from an older epoch counts as empty.
+ * <p>
+ * Keys are matched with hashCode() and equals(), so those must agree with compareTo(),
+ * as for any key that is used in both hash and sorted collections.
+ * <p>
+ * @param <T> - key type
+ */
+public final class LookupCache<T> {
+    /**
+     * How a full set picks the line to give up
+     */
+    public enum Eviction {
+        CLOCK,      // the first line whose reference bit is clear
+        TINY_LFU    // the CLOCK victim, unless the sketch says the new key is asked for less often
+    }
+
+    static final int WAYS = 4;      // lines per set
+
+    // one cached search result; entry is null for a key that is not in the tree
+    static final class Line<T> {
+        final T key;
+        final int hash;
+        final int epoch;
+        final AVLTree.Entry<T> entry;
+
+        Line(T key, int hash, int epoch, AVLTree.Entry<T> entry) {
+            this.key = key;
+            this.hash = hash;
+            this.epoch = epoch;
+            this.entry = entry;
+        }
+    }
+
+    private final AtomicReferenceArray<Line<T>> lines;
+    private final byte[] referenced;    // CLOCK bits, one per line
+    private final byte[] hands;         // CLOCK hand of each set
+    private final int setMask;
+    private final Eviction eviction;
+    private final FrequencySketch sketch;       // null for CLOCK
+    private volatile int epoch;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * @param capacity - number of lines, rounded up to a power of two of at least WAYS
+     * @param eviction - CLOCK or TINY_LFU
+     */
+    public LookupCache(int capacity, Eviction eviction) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("cache capacity must be positive, got " + capacity);
+        }
+        if (eviction == null) {
+            throw new NullPointerException("eviction");
+        }
+        int n = Math.max(WAYS, Integer.highestOneBit(Math.min(capacity, 1 << 30) - 1) << 1);
+        lines = new AtomicReferenceArray<>(n);
+        referenced = new byte[n];
+        hands = new byte[n / WAYS];
+        setMask = n / WAYS - 1;
+        this.eviction = eviction;
+        sketch = (eviction == Eviction.TINY_LFU) ? new FrequencySketch(n) : null;
+    }
+
+    // hashCode() with its bits mixed, so keys with regular hashes (small Integers) spread over the sets
+    static int hash(Object key) {
+        int h = key.hashCode() * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Cached result for a key
+     * <p>
+     * @param key - the key searched for
+     * @param h - hash(key)
+     * @return the line for key, whose entry is null if the key is absent, or null on a miss
+     */
+    Line<T> get(T key, int h) {
+        int base = (h & setMask) * WAYS;
+        int e = epoch;
+        if (sketch != null) sketch.increment(h);
+        for (int i = base; i < base + WAYS; i++) {
+            Line<T> line = lines.get(i);
+            if (line != null && line.hash == h && line.epoch == e && key.equals(line.key)) {
+                if (referenced[i] == 0) referenced[i] = 1;      // only write when it changes, the line stays shared in the CPU caches
+                hits.increment();
+                return line;
+            }
+        }
+        misses.increment();
+        return null;
+    }
+
+    /**
+     * Stores the result of a search that missed the cache
+     * <p>
+     * @param key - the key searched for
+     * @param h - hash(key)
+     * @param entry - the entry that holds key, or null if it is not in the tree
+     */
+    void put(T key, int h, AVLTree.Entry<T> entry) {
+        int set = h & setMask;
+        int base = set * WAYS;
+        int e = epoch;
+        for (int i = base; i < base + WAYS; i++) {      // a free or stale line, or the key's own
+            Line<T> line = lines.get(i);
+            if (line == null || line.epoch != e || (line.hash == h && key.equals(line.key))) {
+                referenced[i] = 0;
+                lines.set(i, new Line<>(key, h, e, entry));
+                return;
+            }
+        }
+        int victim = victim(set, base);
+        if (sketch != null && sketch.frequency(h) <= sketch.frequency(lines.get(victim).hash)) {
+            return;     // not admitted: the line it would replace is in more demand
+        }
+        referenced[victim] = 0;
+        lines.set(victim, new Line<>(key, h, e, entry));
+    }
+
+    // CLOCK: advances the set's hand, clearing reference bits, to the first line without one
+    private int victim(int set, int base) {
+        int hand = hands[set];
+        for (int k = 0; k < 2 * WAYS; k++) {       // two turns at most, unless readers keep setting bits
+            int i = base + hand;
+            hand = (hand + 1) & (WAYS - 1);
+            if (referenced[i] == 0) {
+                hands[set] = (byte) hand;
+                return i;
+            }
+            referenced[i] = 0;
+        }
+        hands[set] = (byte) ((hand + 1) & (WAYS - 1));
+        return base + hand;
+    }
+
+    /**
+     * Drops the cached result for a key, after a change to the tree that affects it
+     * <p>
+     * @param key - the key whose presence or entry changed
+     */
+    void invalidate(T key) {
+        int h = hash(key);
+        int base = (h & setMask) * WAYS;
+        for (int i = base; i < base + WAYS; i++) {
+            Line<T> line = lines.get(i);
+            if (line != null && line.hash == h && key.equals(line.key)) {
+                lines.compareAndSet(i, line, null);
+                return;
+            }
+        }
+    }
+
+    // forgets every line, for changes that rebuild the tree; the lines are overwritten as they are reused
+    void clear() {
+        epoch++;
+    }
+
+    // number of lines
+    public int capacity() {
+        return lines.length();
+    }
+
+    public Eviction eviction() {
+        return eviction;
+    }
+
+    public long hits() {
+        return hits.sum();
+    }
+
+    public long misses() {
+        return misses.sum();
+    }
+
+    // fraction of lookups answered from the cache, 0 if there were none
+    public double hitRate() {
+        long h = hits.sum();
+        long total = h + misses.sum();
+        return (total == 0) ? 0 : (double) h / total;
+    }
+
+    // zeroes the hit and miss counts, keeping what is cached
+    public void resetStats() {
+        hits.reset();
+        misses.reset();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s cache of %d lines, %d hits, %d misses (%.1f%%)",
+                eviction, capacity(), hits(), misses(), 100 * hitRate());
+    }
+
+    /**
+     * Count-min sketch of recent lookup frequencies, with 4-bit counters
+     * <p>
+     * Each key bumps one counter in each of 4 rows; its estimate is the smallest of the
+     * 4, which can only be too high, and only when all 4 collide. Sixteen counters share
+     * a long. Counters stop at 15, and after 10 lookups per line all of them are halved,
+     * so the estimates follow recent demand rather than all time.
+     */
+    private static final class FrequencySketch {
+        private static final long[] SEEDS = {
+            0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L
+        };
+        private static final long HALF_MASK = 0x7777777777777777L;     // clears each counter's top bit after a shift
+
+        private final long[] table;
+        private final int mask;
+        private final int sampleSize;
+        private int additions;
+
+        FrequencySketch(int capacity) {
+            table = new long[Math.max(16, capacity)];     // capacity is a power of two
+            mask = table.length - 1;
+            sampleSize = 10 * capacity;
+        }
+
+        // row's slot for h: the long in the low bits, the counter within it in the top 4 bits
+        private static long spread(int h, int row) {
+            long x = (h + SEEDS[row]) * SEEDS[row];
+            return x ^ (x >>> 32);
+        }
+
+        int frequency(int h) {
+            int f = 15;
+            for (int row = 0; row < SEEDS.length; row++) {
+                long x = spread(h, row);
+                int shift = (int) (x >>> 60) << 2;
+                f = Math.min(f, (int) (table[(int) x & mask] >>> shift) & 15);
+            }
+            return f;
+        }
+
+        void increment(int h) {
+            boolean added = false;
+            for (int row = 0; row < SEEDS.length; row++) {
+                long x = spread(h, row);
+                int i = (int) x & mask;
+                int shift = (int) (x >>> 60) << 2;
+                if (((table[i] >>> shift) & 15) < 15) {
+                    table[i] += 1L << shift;
+                    added = true;
+                }
+            }
+            if (added && ++additions >= sampleSize) {
+                for (int i = 0; i < table.length; i++) {
+                    table[i] = (table[i] >>> 1) & HALF_MASK;
+                }
+                additions /= 2;
+            }
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package jxc033200;
+
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Converts a text operation file to the binary operation format
+ * <p>
+ * Usage: java jxc033200.OperationLogConverter input.txt output.bin
+ * <p>
+ * The input may also be a binary file, which is simply rewritten. The output can be
+ * given to AVLTreeDriver or BinarySearchTree in place of the text file.
+ */
+public class OperationLogConverter {
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("usage: java jxc033200.OperationLogConverter input.txt output.bin");
+            System.exit(2);
+        }
+        long count = 0;
+        try (OperationReader in = OperationReader.open(args[0]);
+             BinaryOperationWriter out = new BinaryOperationWriter(new BufferedOutputStream(new FileOutputStream(args[1])))) {
+            int op;
+            while ((op = in.next()) != OperationReader.END) {
+                out.write(op, in.operand());
+                count++;
+            }
+        }
+        System.out.println(count + " operations written to " + args[1]);
+    }
+}
@@ -0,0 +1,69 @@
+package jxc033200;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * Streaming source of tree operations for the drivers
+ * <p>
+ * An operation is an opcode plus, except for END, a long operand. next() returns the
+ * opcode and operand() the operand of the operation just read, so reading does not
+ * create an object per operation.
+ * <p>
+ * Two formats are read: the text format of the test files ("Add 5 Remove 3 ... End",
+ * whitespace separated), with TextOperationReader, and the compact binary format
+ * written by BinaryOperationWriter, with BinaryOperationReader. open() tells them
+ * apart by the binary format's magic header.
+ */
+public interface OperationReader extends Closeable {
+    int END = 0;
+    int ADD = 1;
+    int REMOVE = 2;
+    int CONTAINS = 3;
+
+    /**
+     * Reads the next operation
+     * <p>
+     * @return the opcode, END once the end marker or the end of the input is reached
+     * @throws IOException if the input cannot be read or is malformed
+     */
+    int next() throws IOException;
+
+    // operand of the operation last returned by next()
+    long operand();
+
+    /**
+     * Opens an operation file in either format
+     * <p>
+     * @param file - path of a text or binary operation file
+     * @return a reader positioned at the first operation
+     * @throws IOException if the file cannot be opened
+     */
+    static OperationReader open(String file) throws IOException {
+        Path path = Path.of(file);
+        byte[] magic = new byte[BinaryOperationWriter.MAGIC.length];
+        int n;
+        try (InputStream in = Files.newInputStream(path)) {
+            n = in.readNBytes(magic, 0, magic.length);
+        }
+        if (n == magic.length && Arrays.equals(magic, BinaryOperationWriter.MAGIC)) {
+            return new BinaryOperationReader(path);
+        }
+        return new TextOperationReader(Files.newInputStream(path));
+    }
+
+    /**
+     * Opens the file named by args[0], or standard input (text format) if there is none
+     * <p>
+     * @param args - command line arguments of a driver
+     * @return a reader positioned at the first operation
+     * @throws IOException if the file cannot be opened
+     */
+    static OperationReader open(String[] args) throws IOException {
+        return (args.length > 0) ? open(args[0]) : new TextOperationReader(System.in);
+    }
+}
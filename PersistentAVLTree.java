@@ -0,0 +1,299 @@
+package jxc033200;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * AVL tree whose entries are never modified, so any past version can still be read
+ * <p>
+ * add() and remove() do not touch existing entries. They copy the entries on the
+ * search path of x, O(log n) of them, and rotate copies rather than originals; every
+ * subtree off the path is shared with the previous version. The new root is then
+ * published through a volatile field.
+ * <p>
+ * Writers are serialized by the tree's lock. Readers take no lock: contains() and
+ * snapshot() read the root once and from then on see an immutable tree. snapshot()
+ * is O(1), and the Snapshot it returns can be searched and iterated while writes go
+ * on, without ever seeing any of them.
+ * <p>
+ * Heights follow AVLTree: a leaf has height 0 and null -1.
+ * <p>
+ * @param <T> - element type
+ */
+public class PersistentAVLTree<T extends Comparable<? super T>> implements Iterable<T> {
+    static final class Entry<T> {
+        final T element;
+        final Entry<T> left, right;
+        final int height;
+        final int size;
+
+        Entry(T element, Entry<T> left, Entry<T> right) {
+            this.element = element;
+            this.left = left;
+            this.right = right;
+            this.height = 1 + Math.max(height(left), height(right));
+            this.size = 1 + size(left) + size(right);
+        }
+    }
+
+    private volatile Entry<T> root;
+    private boolean changed;    // set by the last insert()/delete(), only used under the lock
+
+    public PersistentAVLTree() {
+        root = null;
+    }
+
+    static int height(Entry<?> t) {
+        return (t == null) ? -1 : t.height;
+    }
+
+    static int size(Entry<?> t) {
+        return (t == null) ? 0 : t.size;
+    }
+
+    public int size() {
+        return size(root);
+    }
+
+    // Is x contained in the current version of the tree?
+    public boolean contains(T x) {
+        return contains(root, x);
+    }
+
+    /**
+     * Returns the current version of the tree, in O(1)
+     * <p>
+     * @return an immutable view that later writes do not affect
+     */
+    public Snapshot<T> snapshot() {
+        return new Snapshot<>(root);
+    }
+
+    // iterates over a snapshot taken now
+    public Iterator<T> iterator() {
+        return snapshot().iterator();
+    }
+
+    /**
+     * Add x to the tree
+     * <p>
+     * If x is already present its element is replaced, as in BinarySearchTree.add().
+     * <p>
+     * @param x - the element to add
+     * @return true if a new element was added, false if an equal one was replaced
+     */
+    public synchronized boolean add(T x) {
+        changed = false;
+        root = insert(root, x);
+        return changed;
+    }
+
+    /**
+     * Remove x from the tree
+     * <p>
+     * @param x - the element to remove
+     * @return x if it was removed, null if it was not in the tree
+     */
+    public synchronized T remove(T x) {
+        changed = false;
+        Entry<T> t = delete(root, x);
+        if (!changed) return null;
+        root = t;
+        return x;
+    }
+
+    // returns a new version of subtree t with x added; changed is set if it was not there
+    private Entry<T> insert(Entry<T> t, T x) {
+        if (t == null) {
+            changed = true;
+            return new Entry<>(x, null, null);
+        }
+        int cmp = x.compareTo(t.element);
+        if (cmp < 0) {
+            return balance(t.element, insert(t.left, x), t.right);
+        } else if (cmp > 0) {
+            return balance(t.element, t.left, insert(t.right, x));
+        } else {
+            return new Entry<>(x, t.left, t.right);
+        }
+    }
+
+    // returns a new version of subtree t without x, or t itself if x is not in it
+    private Entry<T> delete(Entry<T> t, T x) {
+        if (t == null) return null;
+        int cmp = x.compareTo(t.element);
+        if (cmp < 0) {
+            Entry<T> l = delete(t.left, x);
+            return (l == t.left) ? t : balance(t.element, l, t.right);
+        } else if (cmp > 0) {
+            Entry<T> r = delete(t.right, x);
+            return (r == t.right) ? t : balance(t.element, t.left, r);
+        }
+        changed = true;
+        if (t.left == null) return t.right;
+        if (t.right == null) return t.left;
+        Entry<T> min = t.right;     // replace with the minimum of the right subtree
+        while (min.left != null) {
+            min = min.left;
+        }
+        return balance(min.element, t.left, deleteMin(t.right));
+    }
+
+    private Entry<T> deleteMin(Entry<T> t) {
+        if (t.left == null) return t.right;
+        return balance(t.element, deleteMin(t.left), t.right);
+    }
+
+    /**
+     * Builds the entry (x, l, r), rotating if l and r differ in height by 2
+     * <p>
+     * The same single and double rotation cases as AVLTree.rebalance(), except the
+     * rotated entries are new ones built from the old entries' fields.
+     */
+    private static <T> Entry<T> balance(T x, Entry<T> l, Entry<T> r) {
+        if (height(l) > height(r) + 1) {
+            if (height(l.left) >= height(l.right)) {   // rotate right
+                return new Entry<>(l.element, l.left, new Entry<>(x, l.right, r));
+            }
+            Entry<T> lr = l.right;                      // rotate left-right
+            return new Entry<>(lr.element, new Entry<>(l.element, l.left, lr.left), new Entry<>(x, lr.right, r));
+        }
+        if (height(r) > height(l) + 1) {
+            if (height(r.right) >= height(r.left)) {   // rotate left
+                return new Entry<>(r.element, new Entry<>(x, l, r.left), r.right);
+            }
+            Entry<T> rl = r.left;                       // rotate right-left
+            return new Entry<>(rl.element, new Entry<>(x, l, rl.left), new Entry<>(r.element, rl.right, r.right));
+        }
+        return new Entry<>(x, l, r);
+    }
+
+    static <T extends Comparable<? super T>> boolean contains(Entry<T> t, T x) {
+        while (t != null) {
+            int cmp = x.compareTo(t.element);
+            if (cmp < 0) {
+                t = t.left;
+            } else if (cmp > 0) {
+                t = t.right;
+            } else {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Verify that the current version is a valid AVL tree
+    public boolean verify() {
+        return snapshot().verify();
+    }
+
+    /**
+     * One version of a PersistentAVLTree
+     * <p>
+     * Nothing reachable from a snapshot ever changes, so it needs no synchronization
+     * and its iterators cannot be invalidated.
+     */
+    public static final class Snapshot<T extends Comparable<? super T>> implements Iterable<T> {
+        private final Entry<T> root;
+
+        Snapshot(Entry<T> root) {
+            this.root = root;
+        }
+
+        public int size() {
+            return PersistentAVLTree.size(root);
+        }
+
+        public boolean contains(T x) {
+            return PersistentAVLTree.contains(root, x);
+        }
+
+        public T min() {
+            Entry<T> t = root;
+            if (t == null) return null;
+            while (t.left != null) {
+                t = t.left;
+            }
+            return t.element;
+        }
+
+        public T max() {
+            Entry<T> t = root;
+            if (t == null) return null;
+            while (t.right != null) {
+                t = t.right;
+            }
+            return t.element;
+        }
+
+        /**
+         * Iterates the elements in ascending order
+         * <p>
+         * The stack is sized from the root's height up front, so the iterator allocates
+         * once and next() is O(1) amortized.
+         */
+        public Iterator<T> iterator() {
+            return new Iterator<T>() {
+                @SuppressWarnings({"unchecked", "rawtypes"})
+                private final Entry<T>[] stack = (Entry<T>[]) new Entry[height(root) + 1];
+                private int depth;
+
+                {
+                    pushLeft(root);
+                }
+
+                private void pushLeft(Entry<T> t) {
+                    while (t != null) {
+                        stack[depth++] = t;
+                        t = t.left;
+                    }
+                }
+
+                public boolean hasNext() {
+                    return depth > 0;
+                }
+
+                public T next() {
+                    if (depth == 0) {
+                        throw new NoSuchElementException();
+                    }
+                    Entry<T> t = stack[--depth];
+                    stack[depth] = null;
+                    pushLeft(t.right);
+                    return t.element;
+                }
+            };
+        }
+
+        /**
+         * Verify that this version is a valid AVL tree
+         * <p>
+         * Checks key order, balance, and that every stored height and size matches the
+         * one recomputed bottom-up.
+         * <p>
+         * @return true if all invariants hold
+         */
+        public boolean verify() {
+            return verify(root, null, null) != INVALID;
+        }
+
+        private static final int INVALID = -2;
+
+        // returns the height of the subtree, or INVALID; elements must lie strictly between lo and hi (null: no bound)
+        private static <T extends Comparable<? super T>> int verify(Entry<T> t, T lo, T hi) {
+            if (t == null) return -1;
+            if ((lo != null && t.element.compareTo(lo) <= 0) || (hi != null && t.element.compareTo(hi) >= 0)) {
+                return INVALID;
+            }
+            int lh = verify(t.left, lo, t.element);
+            if (lh == INVALID) return INVALID;
+            int rh = verify(t.right, t.element, hi);
+            if (rh == INVALID) return INVALID;
+            int h = 1 + Math.max(lh, rh);
+            if (Math.abs(lh - rh) > 1 || h != t.height || t.size != 1 + PersistentAVLTree.size(t.left) + PersistentAVLTree.size(t.right)) {
+                return INVALID;
+            }
+            return h;
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package jxc033200;
+
+import java.io.PrintStream;
+
+/**
+ * TreeTracer that keeps the most recent events in a fixed-size ring buffer
+ * <p>
+ * Both arrays are allocated once in the constructor; recording an event is two array
+ * stores and an increment, so it can stay installed on large runs. When the buffer is
+ * full the oldest event is overwritten. dump() prints the retained events oldest first.
+ * <p>
+ * @param <T> - the element type of the traced tree
+ */
+public class RingBufferTracer<T> implements TreeTracer<T> {
+    private final Event[] events;
+    private final Object[] elements;
+    private final int mask;
+    private long count;     // total events seen, the next slot is count & mask
+
+    /**
+     * @param capacity - number of events to retain, rounded up to a power of two
+     */
+    public RingBufferTracer(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        int n = Integer.highestOneBit(capacity);
+        if (n < capacity) n <<= 1;
+        events = new Event[n];
+        elements = new Object[n];
+        mask = n - 1;
+    }
+
+    @Override
+    public void onEvent(Event event, T element) {
+        int i = (int) (count++ & mask);
+        events[i] = event;
+        elements[i] = element;
+    }
+
+    // total number of events recorded, including the ones already overwritten
+    public long count() {
+        return count;
+    }
+
+    // number of events currently retained
+    public int size() {
+        return (int) Math.min(count, events.length);
+    }
+
+    public void clear() {
+        java.util.Arrays.fill(events, null);
+        java.util.Arrays.fill(elements, null);
+        count = 0;
+    }
+
+    /**
+     * Prints the retained events, oldest first
+     * <p>
+     * @param out - the stream to print to
+     */
+    public void dump(PrintStream out) {
+        for (long i = count - size(); i < count; i++) {
+            int j = (int) (i & mask);
+            out.println(events[j] + " " + elements[j]);
+        }
+    }
+}
@@ -0,0 +1,423 @@
+package jxc033200;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Ordered set split by key range over several AVLTrees, so writers to different ranges run in parallel
+ * <p>
+ * A single AVLTree has one root and one shared path stack, so every writer needs the
+ * same lock. Here shard i holds the keys in [upper[i-1], upper[i]), with its own tree
+ * and its own lock, and an add() only locks the shard its key falls in. With random
+ * keys, threads rarely meet on a shard and inserts scale with the number of cores.
+ * <p>
+ * Routing takes no lock. The boundaries live in an immutable Layout, and a writer
+ * reads it under a StampedLock optimistic read (no write to shared memory), locks its
+ * shard, then validates the stamp. Only if the layout changed meanwhile does it retry
+ * under the read lock. Rebalancing takes the write lock, which makes every later
+ * validation fail, and then locks the shards it changes, which waits for the writers
+ * already inside them.
+ * <p>
+ * Shard boundaries follow the data. The tree starts as one shard. Every CHECK_INTERVAL
+ * changes to a shard, the layout is checked. While there are fewer than the requested
+ * shards, the largest one is split at its median, unless that would make shards smaller
+ * than MIN_SHARD. Then, if the checked shard is past 1.5 times the average of the
+ * current shards, it sheds load towards the closest shard below that average: each pair of neighbours on the way, starting at
+ * the far end, is evened out, so the excess travels one shard further with each pair.
+ * Both moves are an AVLTree.split() and an AVLTree.join(), so
+ * they relink O(log n) entries and copy none, and the lock is held only briefly.
+ * <p>
+ * iterator() visits the shards in key order, which is already sorted order, and copies
+ * out up to BATCH elements at a time under a shard's lock. It is weakly consistent: it
+ * never fails, returns each element at most once and in order, and may or may not see
+ * changes made while it runs.
+ * <p>
+ * @param <T> - element type
+ */
+public class ShardedAVLTree<T extends Comparable<? super T>> implements Iterable<T> {
+    static final int CHECK_INTERVAL = 1 << 10;     // changes to a shard between balance checks
+    static final int MIN_SHARD = 1 << 10;          // shards are not split into halves smaller than this
+    static final int BATCH = 256;                  // elements the iterator copies per lock
+
+    static final class Shard<T extends Comparable<? super T>> {
+        final ReentrantLock lock = new ReentrantLock();
+        AVLTree<T> tree;        // guarded by lock
+        int changes;            // guarded by lock, counts towards the next balance check
+
+        Shard(AVLTree<T> tree) {
+            this.tree = tree;
+        }
+    }
+
+    // boundaries and shards, replaced as a whole under the write lock
+    static final class Layout<T extends Comparable<? super T>> {
+        final Shard<T>[] shards;
+        final T[] upper;        // shard i holds keys below upper[i]; the last one is null, no bound
+
+        Layout(Shard<T>[] shards, T[] upper) {
+            this.shards = shards;
+            this.upper = upper;
+        }
+
+        // index of the shard x falls in: the first one whose upper bound is greater than x
+        int route(T x) {
+            int lo = 0;
+            int hi = shards.length - 1;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (x.compareTo(upper[mid]) < 0) {
+                    hi = mid;
+                } else {
+                    lo = mid + 1;
+                }
+            }
+            return lo;
+        }
+    }
+
+    private static final int ADD = 0, REMOVE = 1, CONTAINS = 2;
+
+    private final int maxShards;
+    private final StampedLock router = new StampedLock();
+    private volatile Layout<T> layout;
+    private final LongAdder size = new LongAdder();
+
+    /**
+     * @param shards - how many shards to grow to; a few per core is a good start
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public ShardedAVLTree(int shards) {
+        if (shards < 1) {
+            throw new IllegalArgumentException("need at least one shard, got " + shards);
+        }
+        maxShards = shards;
+        Shard<T> first = new Shard<>(new AVLTree<T>());
+        layout = new Layout<>(new Shard[] { first }, (T[]) new Comparable[1]);
+    }
+
+    public ShardedAVLTree() {
+        this(4 * Runtime.getRuntime().availableProcessors());
+    }
+
+    // number of elements; exact when no write is in progress
+    public long size() {
+        return size.sum();
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    // current number of shards
+    public int shardCount() {
+        return layout.shards.length;
+    }
+
+    /**
+     * Add x to the set
+     * <p>
+     * @param x - the element to add, not null
+     * @return true if x was added, false if an equal element was replaced
+     */
+    public boolean add(T x) {
+        return apply(ADD, x);
+    }
+
+    /**
+     * Remove x from the set
+     * <p>
+     * @param x - the element to remove
+     * @return x if it was removed, null if it was not in the set
+     */
+    public T remove(T x) {
+        return apply(REMOVE, x) ? x : null;
+    }
+
+    /**
+     * Is x contained in the set?
+     * <p>
+     * @param x - the element to search for
+     * @return true if found, false if not found
+     */
+    public boolean contains(T x) {
+        return apply(CONTAINS, x);
+    }
+
+    // runs one operation on the shard of x, holding only that shard's lock
+    private boolean apply(int op, T x) {
+        Objects.requireNonNull(x);
+        long stamp = router.tryOptimisticRead();
+        Layout<T> current = layout;
+        Shard<T> sh = current.shards[current.route(x)];
+        sh.lock.lock();
+        if (!router.validate(stamp)) {      // a rebalance changed the layout, route again under the read lock
+            sh.lock.unlock();
+            stamp = router.readLock();
+            try {
+                Layout<T> l = layout;
+                sh = l.shards[l.route(x)];
+                sh.lock.lock();             // once held, no rebalance can move x's range away
+            } finally {
+                router.unlockRead(stamp);
+            }
+        }
+        boolean result;
+        boolean check = false;
+        try {
+            switch (op) {
+                case ADD:
+                    result = sh.tree.add(x);
+                    if (result) size.increment();
+                    break;
+                case REMOVE:
+                    result = sh.tree.remove(x) != null;
+                    if (result) size.decrement();
+                    break;
+                default:
+                    return sh.tree.contains(x);
+            }
+            check = result && ++sh.changes >= CHECK_INTERVAL;
+            if (check) sh.changes = 0;
+        } finally {
+            sh.lock.unlock();
+        }
+        if (check) rebalance(sh);
+        return result;
+    }
+
+    /**
+     * Splits the largest shard until there are maxShards, then evens sh out with a neighbour
+     * <p>
+     * While there are fewer shards than requested, every check splits the largest one
+     * at its median, whichever shard triggered it, as long as the halves are at least
+     * MIN_SHARD. Then, if sh has grown well past the current average, it sheds elements
+     * toward the closest shard below the average.
+     * <p>
+     * Runs under the write lock, taken with tryWriteLock(): if another thread is already
+     * rebalancing or routing under the read lock, this check is skipped, and the next one
+     * on the shard tries again. Other shards' sizes are read without their locks, which
+     * is only a hint for picking what to move.
+     */
+    private void rebalance(Shard<T> sh) {
+        long stamp = router.tryWriteLock();
+        if (stamp == 0) return;
+        try {
+            Layout<T> l = layout;
+            if (l.shards.length < maxShards) {
+                int largest = 0;
+                for (int j = 1; j < l.shards.length; j++) {
+                    if (l.shards[j].tree.size > l.shards[largest].tree.size) largest = j;
+                }
+                if (l.shards[largest].tree.size >= 2 * MIN_SHARD) {
+                    splitShard(l, largest);
+                    l = layout;
+                }
+            }
+            int i = indexOf(l, sh);     // a split shard keeps its lower half, so sh is still there
+            long target = Math.max(MIN_SHARD, size.sum() / l.shards.length);
+            if (sh.tree.size <= target + target / 2) return;
+            int k = -1;     // the closest shard below the average, on either side
+            for (int d = 1; k < 0 && (i - d >= 0 || i + d < l.shards.length); d++) {
+                if (i - d >= 0 && l.shards[i - d].tree.size < target) {
+                    k = i - d;
+                } else if (i + d < l.shards.length && l.shards[i + d].tree.size < target) {
+                    k = i + d;
+                }
+            }
+            if (k < 0) return;
+            int step = (k > i) ? 1 : -1;
+            for (int m = k - step; m != i - step; m -= step) {     // even out each pair, starting next to k
+                moveToNeighbour(layout, m, m + step);
+            }
+        } finally {
+            router.unlockWrite(stamp);
+        }
+    }
+
+    private static <T extends Comparable<? super T>> int indexOf(Layout<T> l, Shard<T> sh) {
+        for (int i = 0; i < l.shards.length; i++) {
+            if (l.shards[i] == sh) return i;
+        }
+        throw new IllegalStateException("shard is not in the layout");
+    }
+
+    // splits shard i at its median into two shards; caller holds the write lock
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private void splitShard(Layout<T> l, int i) {
+        Shard<T> sh = l.shards[i];
+        sh.lock.lock();
+        try {
+            AVLTree<T> t = sh.tree;
+            T median = t.select(t.size / 2);
+            AVLTree.Split<T> parts = t.split(median);
+            sh.tree = parts.left;
+            Shard<T> upperHalf = new Shard<>(AVLTree.join(new AVLTree<>(), median, parts.right));
+            int n = l.shards.length;
+            Shard<T>[] shards = new Shard[n + 1];
+            T[] upper = (T[]) new Comparable[n + 1];
+            System.arraycopy(l.shards, 0, shards, 0, i + 1);
+            System.arraycopy(l.shards, i + 1, shards, i + 2, n - i - 1);
+            shards[i + 1] = upperHalf;
+            System.arraycopy(l.upper, 0, upper, 0, i);
+            System.arraycopy(l.upper, i, upper, i + 1, n - i);
+            upper[i] = median;
+            layout = new Layout<>(shards, upper);
+        } finally {
+            sh.lock.unlock();
+        }
+    }
+
+    // moves elements from shard i to its neighbour j until they hold the same number; caller holds the write lock
+    private void moveToNeighbour(Layout<T> l, int i, int j) {
+        Shard<T> from = l.shards[i];
+        Shard<T> to = l.shards[j];
+        Shard<T> first = (i < j) ? from : to;     // lock in key order
+        Shard<T> second = (i < j) ? to : from;
+        first.lock.lock();
+        second.lock.lock();
+        try {
+            int k = (from.tree.size - to.tree.size) / 2;
+            if (k < 1) return;      // only ever downhill
+            T[] upper = l.upper.clone();
+            if (j == i + 1) {       // the largest k elements of i go to the front of j
+                T pivot = from.tree.select(from.tree.size - k);
+                AVLTree.Split<T> parts = from.tree.split(pivot);
+                from.tree = parts.left;
+                to.tree = AVLTree.join(new AVLTree<>(), pivot, AVLTree.join(parts.right, null, to.tree));
+                upper[i] = pivot;
+            } else {                // the smallest k elements of i go to the back of j
+                T pivot = from.tree.select(k);
+                AVLTree.Split<T> parts = from.tree.split(pivot);
+                to.tree = AVLTree.join(to.tree, null, parts.left);
+                from.tree = AVLTree.join(new AVLTree<>(), pivot, parts.right);
+                upper[j] = pivot;
+            }
+            layout = new Layout<>(l.shards, upper);
+        } finally {
+            second.lock.unlock();
+            first.lock.unlock();
+        }
+    }
+
+    /**
+     * Iterates the elements in ascending order, weakly consistent
+     * <p>
+     * Each refill locks the shard that holds the successor of the last element
+     * returned and copies out up to BATCH elements greater than it, moving on to the
+     * next shards if that one has none.
+     */
+    public Iterator<T> iterator() {
+        return new Iterator<T>() {
+            @SuppressWarnings({"unchecked", "rawtypes"})
+            private final T[] buf = (T[]) new Comparable[BATCH];
+            private int pos;
+            private int count;
+            private T last;         // last element returned, null before the first
+            private boolean done;
+
+            public boolean hasNext() {
+                if (pos < count) return true;
+                if (!done) fill();
+                return pos < count;
+            }
+
+            public T next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                last = buf[pos];
+                buf[pos++] = null;
+                return last;
+            }
+
+            private void fill() {
+                pos = 0;
+                count = 0;
+                long stamp = router.readLock();
+                try {
+                    Layout<T> l = layout;
+                    for (int i = (last == null) ? 0 : l.route(last); i < l.shards.length && count == 0; i++) {
+                        Shard<T> sh = l.shards[i];
+                        sh.lock.lock();
+                        try {
+                            Iterator<T> it = (last == null) ? sh.tree.iterator() : sh.tree.tailSet(last).iterator();
+                            while (count < BATCH && it.hasNext()) {
+                                T x = it.next();
+                                if (last == null || x.compareTo(last) > 0) {
+                                    buf[count++] = x;
+                                }
+                            }
+                        } finally {
+                            sh.lock.unlock();
+                        }
+                    }
+                } finally {
+                    router.unlockRead(stamp);
+                }
+                done = (count == 0);
+            }
+        };
+    }
+
+    /**
+     * Verify every shard, the boundaries between them and the element count
+     * <p>
+     * Takes the write lock and every shard's lock, so it sees a quiescent set.
+     * <p>
+     * @return true if every shard is a valid AVL tree holding only keys of its own
+     *         range and the sizes add up
+     */
+    public boolean verify() {
+        long stamp = router.writeLock();
+        Layout<T> l = layout;
+        for (Shard<T> sh : l.shards) {
+            sh.lock.lock();
+        }
+        try {
+            long total = 0;
+            T lower = null;
+            for (int i = 0; i < l.shards.length; i++) {
+                AVLTree<T> t = l.shards[i].tree;
+                if (!t.verify()) return false;
+                if (t.size > 0 && ((lower != null && t.min().compareTo(lower) < 0)
+                        || (l.upper[i] != null && t.max().compareTo(l.upper[i]) >= 0))) {
+                    return false;
+                }
+                total += t.size;
+                lower = l.upper[i];
+            }
+            return l.upper[l.upper.length - 1] == null && total == size.sum();
+        } finally {
+            for (Shard<T> sh : l.shards) {
+                sh.lock.unlock();
+            }
+            router.unlockWrite(stamp);
+        }
+    }
+
+    // number of elements in each shard, in key order, for monitoring skew
+    public int[] shardSizes() {
+        Layout<T> l = layout;
+        int[] sizes = new int[l.shards.length];
+        for (int i = 0; i < sizes.length; i++) {
+            Shard<T> sh = l.shards[i];
+            sh.lock.lock();
+            try {
+                sizes[i] = sh.tree.size;
+            } finally {
+                sh.lock.unlock();
+            }
+        }
+        return sizes;
+    }
+
+    @Override
+    public String toString() {
+        return "ShardedAVLTree" + Arrays.toString(shardSizes());
+    }
+}
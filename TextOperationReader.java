@@ -0,0 +1,128 @@
+package jxc033200;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads the text operation format byte by byte
+ * <p>
+ * Scanner matches every token against regular expressions and builds a String for
+ * it. Here the input is read into a reusable byte buffer and the words are
+ * recognised by their bytes, with the number parsed in place, so nothing is
+ * allocated per operation.
+ * <p>
+ * Words are Add, Remove, Contains and End, each of the first three followed by a
+ * decimal operand, separated by any whitespace. Reaching the end of the input counts
+ * as End. Any other word is an error, and so is any byte outside ASCII, such as a
+ * UTF-8 byte order mark or a non-breaking space.
+ */
+public class TextOperationReader implements OperationReader {
+    private static final byte[] ADD_WORD = {'A', 'd', 'd'};
+    private static final byte[] REMOVE_WORD = {'R', 'e', 'm', 'o', 'v', 'e'};
+    private static final byte[] CONTAINS_WORD = {'C', 'o', 'n', 't', 'a', 'i', 'n', 's'};
+    private static final byte[] END_WORD = {'E', 'n', 'd'};
+
+    private final InputStream in;
+    private final byte[] buf = new byte[1 << 16];
+    private int pos, limit;
+    private long offset;        // input bytes before buf[0], for error messages
+    private long operand;
+
+    public TextOperationReader(InputStream in) {
+        this.in = in;
+    }
+
+    public int next() throws IOException {
+        int c = skipWhitespace();
+        if (c < 0) return END;
+        byte[] word;
+        int op;
+        switch (c) {
+            case 'A': word = ADD_WORD; op = ADD; break;
+            case 'R': word = REMOVE_WORD; op = REMOVE; break;
+            case 'C': word = CONTAINS_WORD; op = CONTAINS; break;
+            case 'E': word = END_WORD; op = END; break;
+            default: throw new IOException("unknown operation starting with '" + (char) c + "'");
+        }
+        for (int i = 1; i < word.length; i++) {
+            if (read() != word[i]) {
+                throw new IOException("unknown operation, expected " + new String(word, "US-ASCII"));
+            }
+        }
+        int after = read();
+        if (after >= 0 && !isWhitespace(after)) {
+            throw new IOException("unknown operation, expected " + new String(word, "US-ASCII"));
+        }
+        if (op != END) {
+            operand = readLong();
+        }
+        return op;
+    }
+
+    public long operand() {
+        return operand;
+    }
+
+    // parses an optionally signed decimal number after any whitespace
+    private long readLong() throws IOException {
+        int c = skipWhitespace();
+        boolean negative = (c == '-');
+        if (negative) c = read();
+        if (c < '0' || c > '9') {
+            throw new IOException("operand expected");
+        }
+        long v = 0;
+        do {
+            int d = c - '0';
+            // accumulate negatively so that Long.MIN_VALUE parses too
+            if (v < (Long.MIN_VALUE + d) / 10) {
+                throw new IOException("operand out of range");
+            }
+            v = v * 10 - d;
+            c = read();
+        } while (c >= '0' && c <= '9');
+        if (c >= 0 && !isWhitespace(c)) {
+            throw new IOException("bad operand character '" + (char) c + "'");
+        }
+        if (!negative) {
+            if (v == Long.MIN_VALUE) throw new IOException("operand out of range");
+            v = -v;
+        }
+        return v;
+    }
+
+    // returns the first non-whitespace byte, or -1 at the end of the input
+    private int skipWhitespace() throws IOException {
+        int c;
+        do {
+            c = read();
+        } while (c >= 0 && isWhitespace(c));
+        return c;
+    }
+
+    private static boolean isWhitespace(int c) {
+        return c == ' ' || c == '\n' || c == '\r' || c == '\t' || c == '\f';
+    }
+
+    // returns the next byte, 0 to 127, or -1 at the end of the input
+    private int read() throws IOException {
+        if (pos == limit) {
+            offset += limit;
+            limit = in.read(buf, 0, buf.length);
+            pos = 0;
+            if (limit <= 0) {
+                limit = 0;
+                return -1;
+            }
+        }
+        int c = buf[pos++] & 0xFF;
+        if (c >= 0x80) {
+            throw new IOException(String.format("non-ASCII byte 0x%02X at offset %d", c, offset + pos - 1));
+        }
+        return c;
+    }
+
+    public void close() throws IOException {
+        in.close();
+    }
+}
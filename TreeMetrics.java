@@ -0,0 +1,260 @@
+package jxc033200;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runtime counters for one AVLTree: rotations, search path lengths, height and latency
+ * <p>
+ * Installed with AVLTree.enableMetrics(name), which also registers it with the platform
+ * MBean server as jxc033200:type=AVLTree,name=... so it can be watched from JConsole.
+ * A tree without metrics only pays a null check per operation.
+ * <p>
+ * Every counter is a LongAdder. An uncontended add() is a plain CAS on one field, and
+ * when several threads record at once (the parallel set operations rotate on ForkJoin
+ * workers) each gets its own cell instead of fighting over a cache line. Reads sum the
+ * cells, so they are only as consistent as a monitoring view needs to be.
+ * <p>
+ * Latencies go into log-linear buckets, as in HdrHistogram: values below 8 ns get a
+ * bucket each, and every power of two above that is cut into 8 equal buckets. A value
+ * is found with one numberOfLeadingZeros() and a shift, and a percentile read back from
+ * the histogram is within 12.5% of the real one, from nanoseconds up to centuries, with
+ * 488 buckets per operation.
+ * <p>
+ * getSize() and getHeight() read the tree's fields without locking; from another thread
+ * they may be slightly stale, never wrong for long.
+ */
+public class TreeMetrics implements TreeMetricsMBean {
+    static final int LL = 0, LR = 1, RR = 2, RL = 3;        // rotation kinds, named after the heavy path
+    static final int ADD = 0, REMOVE = 1, CONTAINS = 2;     // timed operations
+
+    static final int MAX_PATH = 64;         // longer search paths share the last bucket
+    static final int SUB_BITS = 3;          // 2^3 buckets per power of two
+    static final int SUB_COUNT = 1 << SUB_BITS;
+    static final int BUCKETS = (63 - SUB_BITS) * SUB_COUNT + SUB_COUNT;   // 488: the last one holds Long.MAX_VALUE
+
+    private static final String[] OPERATIONS = { "add", "remove", "contains" };
+
+    private final AVLTree<?> tree;
+    private final LongAdder[] rotations = adders(4);
+    private final LongAdder[] pathLengths = adders(MAX_PATH + 1);
+    private final LongAdder[][] latencies = { adders(BUCKETS), adders(BUCKETS), adders(BUCKETS) };
+
+    TreeMetrics(AVLTree<?> tree) {
+        this.tree = tree;
+    }
+
+    private static LongAdder[] adders(int n) {
+        LongAdder[] a = new LongAdder[n];
+        for (int i = 0; i < n; i++) {
+            a[i] = new LongAdder();
+        }
+        return a;
+    }
+
+    void recordRotation(int kind) {
+        rotations[kind].increment();
+    }
+
+    // a search that compared x against length entries
+    void recordPath(int length) {
+        pathLengths[Math.min(length, MAX_PATH)].increment();
+    }
+
+    void recordLatency(int operation, long nanos) {
+        latencies[operation][bucket(Math.max(nanos, 0))].increment();
+    }
+
+    /**
+     * Histogram bucket of a non-negative value
+     * <p>
+     * Below SUB_COUNT the value is its own bucket. Otherwise the highest set bit gives
+     * the power of two and the SUB_BITS bits under it give the bucket within it.
+     */
+    static int bucket(long v) {
+        if (v < SUB_COUNT) return (int) v;
+        int exp = 63 - Long.numberOfLeadingZeros(v);
+        int sub = (int) (v >>> (exp - SUB_BITS)) & (SUB_COUNT - 1);
+        return (exp - SUB_BITS + 1) * SUB_COUNT + sub;
+    }
+
+    // smallest value that falls in bucket b
+    static long lowestValue(int b) {
+        if (b < SUB_COUNT) return b;
+        int exp = b / SUB_COUNT + SUB_BITS - 1;
+        return (long) (SUB_COUNT + b % SUB_COUNT) << (exp - SUB_BITS);
+    }
+
+    // largest value that falls in bucket b
+    static long highestValue(int b) {
+        return (b == BUCKETS - 1) ? Long.MAX_VALUE : lowestValue(b + 1) - 1;
+    }
+
+    public long getRotationsLL() {
+        return rotations[LL].sum();
+    }
+
+    public long getRotationsLR() {
+        return rotations[LR].sum();
+    }
+
+    public long getRotationsRR() {
+        return rotations[RR].sum();
+    }
+
+    public long getRotationsRL() {
+        return rotations[RL].sum();
+    }
+
+    public int getSize() {
+        return tree.size;
+    }
+
+    public int getHeight() {
+        AVLTree.Entry<?> r = (AVLTree.Entry<?>) tree.root;
+        if (r == null) return 0;
+        return (r.height == AVLTree.DIRTY) ? -1 : r.height + 1;     // unknown until relaxed changes are rebalanced
+    }
+
+    /**
+     * Knuth's bound: an AVL tree of n entries has fewer than 1.4405 log2(n + 2) - 0.3277
+     * levels, the worst case being a Fibonacci tree.
+     */
+    public double getHeightBound() {
+        return 1.4405 * (Math.log(tree.size + 2.0) / Math.log(2)) - 0.3277;
+    }
+
+    public double getMeanPathLength() {
+        long count = 0;
+        long total = 0;
+        for (int i = 0; i <= MAX_PATH; i++) {
+            long c = pathLengths[i].sum();
+            count += c;
+            total += c * i;
+        }
+        return (count == 0) ? 0 : (double) total / count;
+    }
+
+    public long[] getPathLengthHistogram() {
+        int last = MAX_PATH;
+        while (last > 0 && pathLengths[last].sum() == 0) {
+            last--;     // trim the empty tail so JConsole shows only the used lengths
+        }
+        long[] h = new long[last + 1];
+        for (int i = 0; i <= last; i++) {
+            h[i] = pathLengths[i].sum();
+        }
+        return h;
+    }
+
+    private long count(int operation) {
+        long n = 0;
+        for (LongAdder a : latencies[operation]) {
+            n += a.sum();
+        }
+        return n;
+    }
+
+    public long getAddCount() {
+        return count(ADD);
+    }
+
+    public long getRemoveCount() {
+        return count(REMOVE);
+    }
+
+    public long getContainsCount() {
+        return count(CONTAINS);
+    }
+
+    public long getCacheHits() {
+        LookupCache<?> c = tree.cache;
+        return (c == null) ? 0 : c.hits();
+    }
+
+    public long getCacheMisses() {
+        LookupCache<?> c = tree.cache;
+        return (c == null) ? 0 : c.misses();
+    }
+
+    /**
+     * Latency that percentile of the recorded operations did not exceed
+     * <p>
+     * @param operation - ADD, REMOVE or CONTAINS
+     * @param percentile - between 0 and 100
+     * @return the highest value of the bucket the percentile falls in, 0 if nothing was recorded
+     */
+    long percentile(int operation, double percentile) {
+        if (percentile < 0 || percentile > 100) {
+            throw new IllegalArgumentException("percentile must be between 0 and 100, got " + percentile);
+        }
+        LongAdder[] h = latencies[operation];
+        long[] counts = new long[BUCKETS];
+        long total = 0;
+        for (int b = 0; b < BUCKETS; b++) {     // one pass of sums, so the walk below sees a fixed histogram
+            counts[b] = h[b].sum();
+            total += counts[b];
+        }
+        if (total == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+        long seen = 0;
+        for (int b = 0; b < BUCKETS; b++) {
+            seen += counts[b];
+            if (seen >= rank) return highestValue(b);
+        }
+        return highestValue(BUCKETS - 1);
+    }
+
+    public long getAddP50Nanos() {
+        return percentile(ADD, 50);
+    }
+
+    public long getAddP99Nanos() {
+        return percentile(ADD, 99);
+    }
+
+    public long getRemoveP50Nanos() {
+        return percentile(REMOVE, 50);
+    }
+
+    public long getRemoveP99Nanos() {
+        return percentile(REMOVE, 99);
+    }
+
+    public long getContainsP50Nanos() {
+        return percentile(CONTAINS, 50);
+    }
+
+    public long getContainsP99Nanos() {
+        return percentile(CONTAINS, 99);
+    }
+
+    public long latencyPercentileNanos(String operation, double percentile) {
+        for (int op = 0; op < OPERATIONS.length; op++) {
+            if (OPERATIONS[op].equals(operation)) return percentile(op, percentile);
+        }
+        throw new IllegalArgumentException("unknown operation: " + operation);
+    }
+
+    public void reset() {
+        for (LongAdder a : rotations) a.reset();
+        for (LongAdder a : pathLengths) a.reset();
+        for (LongAdder[] h : latencies) {
+            for (LongAdder a : h) a.reset();
+        }
+    }
+
+    /**
+     * One-line summary of every counter, for logging
+     * <p>
+     * @return rotation counts, height against the bound, mean path length and latency percentiles
+     */
+    @Override
+    public String toString() {
+        return String.format("rotations LL=%d LR=%d RR=%d RL=%d, height %d (bound %.1f), mean path %.2f, "
+                + "add p50/p99 %d/%d ns, remove p50/p99 %d/%d ns, contains p50/p99 %d/%d ns",
+                getRotationsLL(), getRotationsLR(), getRotationsRR(), getRotationsRL(),
+                getHeight(), getHeightBound(), getMeanPathLength(),
+                getAddP50Nanos(), getAddP99Nanos(), getRemoveP50Nanos(), getRemoveP99Nanos(),
+                getContainsP50Nanos(), getContainsP99Nanos());
+    }
+}
@@ -0,0 +1,64 @@
+package jxc033200;
+
+/**
+ * Management interface of TreeMetrics, as seen in JConsole / VisualVM
+ * <p>
+ * Latencies are in nanoseconds and are the upper end of the histogram bucket the
+ * percentile falls in, so they are at most 1/8 (12.5%) above the true value.
+ */
+public interface TreeMetricsMBean {
+    long getRotationsLL();
+
+    long getRotationsLR();
+
+    long getRotationsRR();
+
+    long getRotationsRL();
+
+    int getSize();
+
+    // levels from the root to the deepest leaf, 0 for an empty tree, -1 while relaxed changes are pending
+    int getHeight();
+
+    // most levels an AVL tree of getSize() elements can have
+    double getHeightBound();
+
+    double getMeanPathLength();
+
+    // entry i counts searches that compared against i entries; the last entry also counts longer ones
+    long[] getPathLengthHistogram();
+
+    long getAddCount();
+
+    long getRemoveCount();
+
+    long getContainsCount();
+
+    // lookups answered by the lookup cache, 0 without one
+    long getCacheHits();
+
+    // lookups that missed the lookup cache and searched the tree, 0 without one
+    long getCacheMisses();
+
+    long getAddP50Nanos();
+
+    long getAddP99Nanos();
+
+    long getRemoveP50Nanos();
+
+    long getRemoveP99Nanos();
+
+    long getContainsP50Nanos();
+
+    long getContainsP99Nanos();
+
+    /**
+     * @param operation - "add", "remove" or "contains"
+     * @param percentile - between 0 and 100
+     * @return the latency in nanoseconds that percentile of the operations did not exceed
+     */
+    long latencyPercentileNanos(String operation, double percentile);
+
+    // zeroes every counter and histogram
+    void reset();
+}
@@ -0,0 +1,71 @@
+package jxc033200;
+
+import java.io.PrintStream;
+
+/**
+ * Listener for structural events in a BinarySearchTree / AVLTree
+ * <p>
+ * Every method has an empty default body, so the shared NONE instance does no work
+ * and allocates nothing. The add/rotate hot path only pays for a call the JIT can
+ * inline away. Install a RingBufferTracer (or printTo()) when debugging.
+ * <p>
+ * @param <T> - the element type of the traced tree
+ */
+public interface TreeTracer<T> {
+
+    enum Event { ROOT_CREATED, DUPLICATE_REPLACED, ROTATE_LEFT, ROTATE_RIGHT }
+
+    @SuppressWarnings("rawtypes")
+    TreeTracer NONE = new TreeTracer() { };
+
+    /**
+     * Returns the no-op tracer
+     * <p>
+     * @return the shared tracer that ignores every event
+     */
+    @SuppressWarnings("unchecked")
+    static <T> TreeTracer<T> none() {
+        return (TreeTracer<T>) NONE;
+    }
+
+    /**
+     * Returns a tracer that prints every event, matching the old console output
+     * <p>
+     * @param out - the stream to print to
+     * @return a tracer writing one line per event
+     */
+    static <T> TreeTracer<T> printTo(PrintStream out) {
+        return new TreeTracer<T>() {
+            @Override
+            public void onEvent(Event event, T element) {
+                out.println(event + " " + element);
+            }
+        };
+    }
+
+    /**
+     * Catch-all hook, every specific callback below forwards here by default
+     * <p>
+     * @param event - what happened
+     * @param element - the element of the entry involved
+     */
+    default void onEvent(Event event, T element) {
+    }
+
+    default void rootCreated(T x) {
+        onEvent(Event.ROOT_CREATED, x);
+    }
+
+    default void duplicateReplaced(T x) {
+        onEvent(Event.DUPLICATE_REPLACED, x);
+    }
+
+    // t is the entry that moved down during the rotation
+    default void rotatedLeft(T t) {
+        onEvent(Event.ROTATE_LEFT, t);
+    }
+
+    default void rotatedRight(T t) {
+        onEvent(Event.ROTATE_RIGHT, t);
+    }
+}
@@ -0,0 +1,212 @@
+package jxc033200;
+
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH benchmarks for AVLTree, LongAVLTree, BinarySearchTree and the B-tree engines
+ * BTreeSet and LongBTreeSet, with java.util.TreeMap as baseline
+ * <p>
+ * Each trial builds a tree of `size` keys inserted in the order given by
+ * `distribution`, then measures single operations against it. Probe keys are boxed
+ * up front so the measured loop only allocates what the tree itself allocates; run
+ * with -prof gc to see that rate.
+ * <p>
+ * BinarySearchTree does not rebalance, so BST with SEQUENTIAL keys degenerates into a
+ * list. Its setup is quadratic and refuses sizes above 100000.
+ * <p>
+ * To pick an engine for a workload, compare e.g. -p impl=AVL,BTREE or
+ * -p impl=LONG_AVL,LONG_BTREE at the sizes and distribution that match it.
+ * <p>
+ * verify() has its own class, AVLVerifyBenchmark, since it only exists on AVLTree.
+ * <p>
+ * Usage: mvn -f bench/pom.xml package && java -jar bench/target/benchmarks.jar -prof gc
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = {"-Xms6g", "-Xmx6g"})
+@State(Scope.Benchmark)
+public class AVLTreeBenchmark {
+    static final int PROBES = 1 << 20;      // probe keys cycled through by the measured operations
+    static final int BST_SEQUENTIAL_LIMIT = 100_000;
+    static final long SEED = 42;
+
+    @Param({"1000", "10000", "100000", "1000000", "10000000"})
+    int size;
+
+    @Param({"SEQUENTIAL", "RANDOM", "ZIPFIAN"})
+    KeyDistribution distribution;
+
+    @Param({"AVL", "LONG_AVL", "LONG_AVL_OFF_HEAP", "BTREE", "LONG_BTREE", "BST", "TREEMAP"})
+    String impl;
+
+    Target target;
+    long[] order;
+    Long[] probes;      // as drawn from the distribution
+    Long[] present;     // probes rounded down to a stored key
+    Long[] absent;      // probes rounded up to a missing key
+    int next;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        if (impl.equals("BST") && distribution == KeyDistribution.SEQUENTIAL && size > BST_SEQUENTIAL_LIMIT) {
+            throw new IllegalStateException("BST with sequential keys is a linked list, skipping size " + size);
+        }
+        order = distribution.insertOrder(size, SEED);
+        target = Target.create(impl);
+        for (long k : order) {
+            target.add(k);
+        }
+        long[] p = distribution.probes(size, PROBES, SEED);
+        probes = new Long[PROBES];
+        present = new Long[PROBES];
+        absent = new Long[PROBES];
+        for (int i = 0; i < PROBES; i++) {
+            probes[i] = p[i];
+            present[i] = p[i] & ~1L;
+            absent[i] = p[i] | 1L;
+        }
+    }
+
+    private int nextIndex() {
+        int i = next;
+        next = (i + 1) & (PROBES - 1);
+        return i;
+    }
+
+    @Benchmark
+    public boolean contains() {
+        return target.contains(probes[nextIndex()]);
+    }
+
+    @Benchmark
+    public Object find() {
+        return target.find(probes[nextIndex()]);
+    }
+
+    // adds the absent neighbour of a probe key, then removes it again to keep the size steady
+    @Benchmark
+    public boolean addThenRemove() {
+        Long k = absent[nextIndex()];
+        boolean added = target.add(k);
+        target.remove(k);
+        return added;
+    }
+
+    // removes a stored key, then adds it back to keep the size steady
+    @Benchmark
+    public boolean removeThenAdd() {
+        Long k = present[nextIndex()];
+        boolean removed = target.remove(k);
+        target.add(k);
+        return removed;
+    }
+
+    // builds a whole tree from empty, reported per build
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 2)
+    @Measurement(iterations = 5)
+    public Target build() {
+        Target t = Target.create(impl);
+        for (long k : order) {
+            t.add(k);
+        }
+        return t;
+    }
+
+    /**
+     * The operations under test, behind one call site per benchmark method
+     */
+    abstract static class Target {
+        abstract boolean add(Long x);
+        abstract boolean remove(Long x);
+        abstract boolean contains(Long x);
+        abstract Object find(Long x);
+
+        static Target create(String impl) {
+            switch (impl) {
+                case "AVL": return new TreeTarget(new AVLTree<>());
+                case "LONG_AVL": return new LongTreeTarget(LongAVLTree.Storage.HEAP);
+                case "LONG_AVL_OFF_HEAP": return new LongTreeTarget(LongAVLTree.Storage.OFF_HEAP);
+                case "BTREE": return new BTreeTarget();
+                case "LONG_BTREE": return new LongBTreeTarget();
+                case "BST": return new TreeTarget(new BinarySearchTree<>());
+                case "TREEMAP": return new TreeMapTarget();
+                default: throw new IllegalArgumentException("unknown impl " + impl);
+            }
+        }
+    }
+
+    static final class TreeTarget extends Target {
+        final BinarySearchTree<Long> tree;
+
+        TreeTarget(BinarySearchTree<Long> tree) {
+            this.tree = tree;
+        }
+
+        boolean add(Long x) { return tree.add(x); }
+        boolean remove(Long x) { return tree.remove(x) != null; }
+        boolean contains(Long x) { return tree.contains(x); }
+        Object find(Long x) { return tree.find(x); }
+    }
+
+    // LongAVLTree unboxes at the call; it has no find(), contains() is its descent
+    static final class LongTreeTarget extends Target {
+        final LongAVLTree tree;
+
+        LongTreeTarget(LongAVLTree.Storage storage) {
+            this.tree = new LongAVLTree(storage);
+        }
+
+        boolean add(Long x) { return tree.add(x); }
+        boolean remove(Long x) { return tree.remove(x); }
+        boolean contains(Long x) { return tree.contains(x); }
+        Object find(Long x) { return tree.contains(x); }
+    }
+
+    // BTreeSet has no find(), contains() is its descent
+    static final class BTreeTarget extends Target {
+        final BTreeSet<Long> tree = new BTreeSet<>();
+
+        boolean add(Long x) { return tree.add(x); }
+        boolean remove(Long x) { return tree.remove(x) != null; }
+        boolean contains(Long x) { return tree.contains(x); }
+        Object find(Long x) { return tree.contains(x); }
+    }
+
+    static final class LongBTreeTarget extends Target {
+        final LongBTreeSet tree = new LongBTreeSet();
+
+        boolean add(Long x) { return tree.add(x); }
+        boolean remove(Long x) { return tree.remove(x); }
+        boolean contains(Long x) { return tree.contains(x); }
+        Object find(Long x) { return tree.contains(x); }
+    }
+
+    // a TreeMap used as a set; find() maps to floorKey(), the closest public descent
+    static final class TreeMapTarget extends Target {
+        final TreeMap<Long, Boolean> map = new TreeMap<>();
+
+        boolean add(Long x) { return map.put(x, Boolean.TRUE) == null; }
+        boolean remove(Long x) { return map.remove(x) != null; }
+        boolean contains(Long x) { return map.containsKey(x); }
+        Object find(Long x) { return map.floorKey(x); }
+    }
+}
@@ -0,0 +1,51 @@
+package jxc033200;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH benchmark for AVLTree.verify()
+ * <p>
+ * Kept apart from AVLTreeBenchmark so it does not inherit that class's impl axis:
+ * there is nothing to compare verify() against.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = {"-Xms6g", "-Xmx6g"})
+@State(Scope.Benchmark)
+public class AVLVerifyBenchmark {
+    @Param({"1000", "10000", "100000", "1000000", "10000000"})
+    int size;
+
+    @Param({"SEQUENTIAL", "RANDOM", "ZIPFIAN"})
+    KeyDistribution distribution;
+
+    AVLTree<Long> tree;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        tree = new AVLTree<>();
+        for (long k : distribution.insertOrder(size, AVLTreeBenchmark.SEED)) {
+            tree.add(k);
+        }
+    }
+
+    @Benchmark
+    public boolean verify() {
+        return tree.verify();
+    }
+}
@@ -0,0 +1,113 @@
+package jxc033200;
+
+import java.util.Random;
+
+/**
+ * Key orders and probe streams used by the benchmarks
+ * <p>
+ * A tree of size n holds the even keys 0, 2, ..., 2(n-1), so key + 1 is always
+ * absent. insertOrder() says in which order they are added, probes() says which
+ * keys the measured operations ask for.
+ * <p>
+ * SEQUENTIAL: ascending insertion, probes walk the key range in order.
+ * RANDOM: shuffled insertion, probes are uniform over the key range.
+ * ZIPFIAN: shuffled insertion, probes follow a Zipf(0.99) law over the stored keys,
+ * with the hot ranks scattered across the key range.
+ */
+public enum KeyDistribution {
+    SEQUENTIAL, RANDOM, ZIPFIAN;
+
+    static final double ZIPF_THETA = 0.99;
+
+    /**
+     * Returns the stored keys in the order they should be inserted
+     * <p>
+     * @param n - number of keys
+     * @param seed - random seed
+     * @return the even keys 0..2(n-1), ascending for SEQUENTIAL and shuffled otherwise
+     */
+    public long[] insertOrder(int n, long seed) {
+        long[] keys = new long[n];
+        for (int i = 0; i < n; i++) {
+            keys[i] = 2L * i;
+        }
+        if (this != SEQUENTIAL) {
+            shuffle(keys, new Random(seed));
+        }
+        return keys;
+    }
+
+    /**
+     * Returns count probe keys for a tree built from insertOrder(n, seed)
+     * <p>
+     * @param n - number of stored keys
+     * @param count - number of probes
+     * @param seed - random seed
+     * @return the probe keys, all even (stored) except RANDOM, which hits about half
+     */
+    public long[] probes(int n, int count, long seed) {
+        Random rnd = new Random(seed ^ 0x5DEECE66DL);
+        long[] probes = new long[count];
+        switch (this) {
+            case SEQUENTIAL:
+                for (int i = 0; i < count; i++) {
+                    probes[i] = 2L * (i % n);
+                }
+                break;
+            case RANDOM:
+                for (int i = 0; i < count; i++) {
+                    probes[i] = (long) (rnd.nextDouble() * 2 * n);
+                }
+                break;
+            case ZIPFIAN: {
+                long[] byRank = insertOrder(n, seed + 1);      // rank r -> a scattered stored key
+                Zipf zipf = new Zipf(n, ZIPF_THETA);
+                for (int i = 0; i < count; i++) {
+                    probes[i] = byRank[zipf.next(rnd)];
+                }
+                break;
+            }
+        }
+        return probes;
+    }
+
+    private static void shuffle(long[] a, Random rnd) {
+        for (int i = a.length - 1; i > 0; i--) {
+            int j = rnd.nextInt(i + 1);
+            long t = a[i];
+            a[i] = a[j];
+            a[j] = t;
+        }
+    }
+
+    // Gray et al. "Quickly generating billion-record synthetic databases", as used by YCSB
+    private static final class Zipf {
+        final int n;
+        final double theta, alpha, zetan, eta;
+
+        Zipf(int n, double theta) {
+            this.n = n;
+            this.theta = theta;
+            this.alpha = 1.0 / (1.0 - theta);
+            this.zetan = zeta(n, theta);
+            double zeta2 = zeta(2, theta);
+            this.eta = (1 - Math.pow(2.0 / n, 1 - theta)) / (1 - zeta2 / zetan);
+        }
+
+        static double zeta(int n, double theta) {
+            double sum = 0;
+            for (int i = 1; i <= n; i++) {
+                sum += 1 / Math.pow(i, theta);
+            }
+            return sum;
+        }
+
+        int next(Random rnd) {
+            double u = rnd.nextDouble();
+            double uz = u * zetan;
+            if (uz < 1) return 0;
+            if (uz < 1 + Math.pow(0.5, theta)) return Math.min(1, n - 1);
+            return (int) Math.min(n - 1, (long) (n * Math.pow(eta * u - eta + 1, alpha)));
+        }
+    }
+}